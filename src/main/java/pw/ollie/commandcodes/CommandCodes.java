@@ -1,5 +1,8 @@
 package pw.ollie.commandcodes;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+
 import pw.ollie.commandcodes.code.CodeManager;
 import pw.ollie.commandcodes.command.CCodeCommand;
 import pw.ollie.commandcodes.storage.FileManager;
@@ -28,6 +31,11 @@ public final class CommandCodes extends JavaPlugin {
      * The FileManager object, which manages all of the files for the plugin
      */
     private FileManager fileManager;
+    /**
+     * Completed once the saved command codes have been loaded, which happens
+     * on a background thread if async-loading is enabled
+     */
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
 
     @Override
     public void onEnable() {
@@ -37,25 +45,76 @@ public final class CommandCodes extends JavaPlugin {
         // Load the command manager and the saved command codes
         codeManager = new CodeManager(this);
 
-        try {
-            codeManager.loadCodes();
-        } catch (final StorageException e) {
-            e.printStackTrace();
+        if (fileManager.getConfig().getBoolean("async-loading", false)) {
+            getServer().getScheduler().runTaskAsynchronously(this,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            loadCodes();
+                        }
+                    });
+        } else {
+            loadCodes();
         }
 
-        // Register the plugin's commands
+        // Register the plugin's commands, which wait for the codes to load
         baseCommand = new CCodeCommand(this);
         baseCommand.createSubCommands();
         getCommand("ccode").setExecutor(baseCommand);
     }
 
+    /**
+     * Loads the saved command codes and starts autosaving them, then marks
+     * the plugin as ready. If the codes can't be loaded, they aren't
+     * autosaved, so the incomplete codes never replace the stored ones
+     */
+    private void loadCodes() {
+        try {
+            codeManager.loadCodes();
+        } catch (final StorageException | RuntimeException e) {
+            getLogger().log(Level.SEVERE, "Could not load command codes!", e);
+            ready.completeExceptionally(e);
+            return;
+        } catch (final Error e) {
+            // Nothing else completes the future, and commands and onDisable
+            // would wait on it forever
+            ready.completeExceptionally(e);
+            throw e;
+        }
+        try {
+            codeManager.scheduleAutosave();
+        } finally {
+            ready.complete(null);
+        }
+    }
+
     @Override
     public void onDisable() {
-        // Save the command codes to a JSON file
+        // Codes which are still loading must finish, or saving would replace
+        // them with the part loaded so far
+        if (!ready.isDone()) {
+            getLogger().info("Waiting for codes to finish loading...");
+        }
+        boolean loaded;
         try {
-            codeManager.saveCodes();
+            ready.join();
+            loaded = true;
+        } catch (final RuntimeException e) {
+            // Loading failed, so there is nothing complete to save
+            loaded = false;
+        }
+
+        // Save the command codes, waiting no longer than the configured
+        // timeout. A save which is still running holds the storage lock, so
+        // the codes aren't loaded again until it is done, and closes the
+        // store itself
+        if (loaded && !codeManager.saveOnShutdown()) {
+            return;
+        }
+        try {
+            codeManager.close();
         } catch (final StorageException e) {
-            e.printStackTrace();
+            getLogger().log(Level.SEVERE, "Could not close code storage", e);
         }
     }
 
@@ -70,6 +129,36 @@ public final class CommandCodes extends JavaPlugin {
         return codeManager;
     }
 
+    /**
+     * Checks whether the saved command codes have finished loading, so the
+     * CodeManager can be used
+     * 
+     * @return Whether the plugin's codes have been loaded
+     */
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Checks whether the saved command codes couldn't be loaded, in which case
+     * the CodeManager will never be usable until the plugin is reloaded
+     * 
+     * @return Whether loading the plugin's codes failed
+     */
+    public boolean hasFailedToLoad() {
+        return ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Gets a future which is completed once the saved command codes have been
+     * loaded, or completed exceptionally if loading them failed
+     * 
+     * @return A future completed when the plugin's codes have been loaded
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+
     /**
      * Gets the CCodeCommand object for the plugin, which contains helpful
      * utility methods for the handling of commands for CommandCodes as well as
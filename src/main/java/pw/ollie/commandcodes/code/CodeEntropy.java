@@ -0,0 +1,24 @@
+package pw.ollie.commandcodes.code;
+
+/**
+ * A source of randomness for picking command codes. Implementations must be
+ * safe to use from multiple threads at once
+ */
+public interface CodeEntropy {
+    /**
+     * Gets a uniformly distributed random long
+     * 
+     * @return A random long
+     */
+    long nextLong();
+
+    /**
+     * Gets a uniformly distributed random long between 0 (inclusive) and the
+     * given bound (exclusive)
+     * 
+     * @param bound
+     *            The exclusive upper bound, which must be positive
+     * @return A random long from 0 to bound - 1
+     */
+    long nextLong(long bound);
+}
@@ -0,0 +1,219 @@
+package pw.ollie.commandcodes.code;
+
+import pw.ollie.commandcodes.util.GeneralUtil;
+
+/**
+ * Generates unique codes, taking into account how much of the space of
+ * possible codes of a given length has already been issued. While the space
+ * is sparsely used, codes are picked at random. Once random picks become
+ * likely to collide, codes are instead taken by walking through a shuffled
+ * ordering of the whole space, so finding a free code stays cheap even when
+ * nearly every code has been issued. Random picks are drawn before taking the
+ * lock on the IssuedCodes set, so generation on several threads only contends
+ * briefly to claim each code
+ */
+public final class CodeGenerator {
+    /**
+     * The proportion of a code length's space which may be issued before
+     * random picks are skipped in favour of walking the space
+     */
+    private static final double DENSE_THRESHOLD = 0.5;
+    /**
+     * The amount of random picks made before falling back to walking the space
+     */
+    private static final int MAX_RANDOM_PROBES = 8;
+    /**
+     * The largest space of codes which will be walked. Larger spaces can't be
+     * filled enough (in memory) for random picks to become expensive
+     */
+    private static final long MAX_WALK_SPACE = 1L << 32;
+    /**
+     * The amount of rounds used in the shuffling permutation
+     */
+    private static final int ROUNDS = 4;
+
+    /**
+     * The codes which have already been issued
+     */
+    private final IssuedCodes issued;
+    /**
+     * The source of randomness for picking codes
+     */
+    private final CodeEntropy entropy;
+    /**
+     * The walk through each length's code space, created when first needed
+     */
+    private final Walk[] walks;
+
+    public CodeGenerator(final IssuedCodes issued, final CodeEntropy entropy) {
+        this.issued = issued;
+        this.entropy = entropy;
+
+        walks = new Walk[IssuedCodes.MAX_PACKED_LENGTH + 1];
+    }
+
+    /**
+     * Generates a code of the given length which hasn't been issued before and
+     * marks it as issued
+     * 
+     * @param length
+     *            The length of the code to generate
+     * @return A newly issued code
+     * @throws IllegalStateException
+     *             If every code of the given length has been issued
+     */
+    public String generate(final int length) {
+        if (length > IssuedCodes.MAX_PACKED_LENGTH) {
+            // The space is far too large to ever be filled
+            while (true) {
+                final String code = randomString(length);
+                synchronized (issued) {
+                    if (issued.add(code)) {
+                        return code;
+                    }
+                }
+            }
+        }
+
+        final long space = IssuedCodes.keyspace(length);
+        final long offset = IssuedCodes.lengthOffset(length);
+        for (int probe = 0;; probe++) {
+            final long key = offset + entropy.nextLong(space);
+
+            synchronized (issued) {
+                final long used = issued.countOfLength(length);
+                if (used >= space) {
+                    throw new IllegalStateException("All " + space
+                            + " codes with " + length + " characters have "
+                            + "been issued, max-code-characters must be "
+                            + "increased");
+                }
+
+                if (space <= MAX_WALK_SPACE
+                        && (probe >= MAX_RANDOM_PROBES || used >= space
+                                * DENSE_THRESHOLD)) {
+                    return walk(length, space, offset);
+                }
+                if (issued.addPacked(key, length)) {
+                    return IssuedCodes.unpack(key, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next free code from the walk through the space of codes with
+     * the given length. This must be called while synchronised on the issued
+     * codes, and there must be at least one free code of the given length
+     */
+    private String walk(final int length, final long space, final long offset) {
+        Walk walk = walks[length];
+        if (walk == null) {
+            walk = walks[length] = new Walk(space, entropy);
+        }
+        // There is at least one free code, and the walk visits every code
+        // once per cycle, so this finds it within one cycle
+        while (true) {
+            final long key = offset + walk.next();
+            if (issued.addPacked(key, length)) {
+                return IssuedCodes.unpack(key, length);
+            }
+        }
+    }
+
+    /**
+     * Generates a random string of the given length, made up of letters and
+     * numbers. Each random long supplies up to 12 characters
+     */
+    private String randomString(final int length) {
+        final long chunkSpace = IssuedCodes
+                .keyspace(IssuedCodes.MAX_PACKED_LENGTH);
+        final char[] chars = new char[length];
+        int idx = 0;
+        while (idx < length) {
+            long value = entropy.nextLong(chunkSpace);
+            for (int i = 0; i < IssuedCodes.MAX_PACKED_LENGTH
+                    && idx < length; i++) {
+                chars[idx++] = IssuedCodes.ALPHABET[(int) (value % 36)];
+                value /= 36;
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A walk through every value from 0 to the size of a code space, in an
+     * order shuffled by a keyed Feistel permutation. The permutation works on
+     * a power of two range at least as large as the space, and values which
+     * fall outside the space are permuted again until they land inside it
+     * (cycle walking), which keeps it a one-to-one mapping onto the space
+     */
+    private static final class Walk {
+        /**
+         * The amount of values in the space
+         */
+        private final long size;
+        /**
+         * The amount of bits in each half of a permuted value
+         */
+        private final int halfBits;
+        /**
+         * The mask for one half of a permuted value
+         */
+        private final long halfMask;
+        /**
+         * The key for each round of the permutation
+         */
+        private final long[] keys;
+        /**
+         * The position in the walk of the next value
+         */
+        private long cursor;
+
+        private Walk(final long size, final CodeEntropy entropy) {
+            this.size = size;
+
+            int bits = 1;
+            while ((1L << (bits * 2)) < size) {
+                bits++;
+            }
+            halfBits = bits;
+            halfMask = (1L << bits) - 1;
+
+            keys = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                keys[i] = entropy.nextLong();
+            }
+            cursor = entropy.nextLong(size);
+        }
+
+        /**
+         * Gets the next value in the walk, starting again from the beginning
+         * after every value has been visited
+         * 
+         * @return The next value in the walk
+         */
+        private long next() {
+            long value = permute(cursor);
+            while (value >= size) {
+                value = permute(value);
+            }
+            if (++cursor == size) {
+                cursor = 0;
+            }
+            return value;
+        }
+
+        private long permute(final long value) {
+            long left = value >>> halfBits;
+            long right = value & halfMask;
+            for (final long key : keys) {
+                final long next = left
+                        ^ (GeneralUtil.mix(right ^ key) & halfMask);
+                left = right;
+                right = next;
+            }
+            return (left << halfBits) | right;
+        }
+    }
+}
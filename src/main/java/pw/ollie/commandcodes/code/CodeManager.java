@@ -1,43 +1,96 @@
 package pw.ollie.commandcodes.code;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 
 import pw.ollie.commandcodes.CommandCodes;
+import pw.ollie.commandcodes.storage.CodeJournal;
 import pw.ollie.commandcodes.storage.FileManager;
-import pw.ollie.commandcodes.storage.JSONFileHandler;
 import pw.ollie.commandcodes.storage.StorageException;
+import pw.ollie.commandcodes.storage.StorageLock;
 import pw.ollie.commandcodes.storage.org.json.JSONObject;
+import pw.ollie.commandcodes.util.UUIDEncoding;
 
+import org.bukkit.Server;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitScheduler;
 
 /**
  * Keeps track of generated CommandCode objects for the CommandCodes plugin.
  * CommandCodes are designed to link a one-time-use code to a command, which
  * could allow a user to perform a command they couldn't normally execute or
- * something similar
+ * something similar. CodeManager is safe to use from any thread: codes are
+ * kept in insertion-ordered tables keyed by normalised code, which are read
+ * under a shared lock, redemptions are claimed atomically by the CommandCode
+ * being redeemed, and only the redeemed command itself is run on the main
+ * thread. If the store is shared with other servers, codes are claimed
+ * against the store and the codes in memory act as a read-through cache of it
  */
 public class CodeManager {
+    /**
+     * The amount of codes tried when generating a code for a shared store
+     * before giving up, if other servers have used each one
+     */
+    private static final int MAX_SHARED_ATTEMPTS = 16;
+
     /**
      * The CommandCodes plugin object
      */
     private final CommandCodes plugin;
     /**
-     * A list of currently active command codes
+     * The currently active command codes, keyed by normalised code in the
+     * order they were added, guarded by tableLock
+     */
+    private final Map<String, CommandCode> currentCodes;
+    /**
+     * The already used command codes which are kept in memory, keyed by
+     * normalised code in the order they were added, guarded by tableLock. If
+     * spent codes are loaded lazily, this only holds codes which couldn't be
+     * archived
+     */
+    private final Map<String, CommandCode> oldCodes;
+    /**
+     * The lock guarding the current and old code tables
      */
-    private final List<CommandCode> currentCodes;
+    private final ReadWriteLock tableLock;
     /**
-     * A list of already used command codes
+     * Every code which has been issued, current or old, used for checking the
+     * uniqueness of newly generated codes. Access is synchronised on the set
+     * itself, as batches of codes are generated asynchronously
      */
-    private final List<CommandCode> oldCodes;
+    private final IssuedCodes issued;
     /**
-     * The instance of Random being used for code generation
+     * The generator used to pick new codes
      */
-    private final Random random = new Random();
+    private final CodeGenerator generator;
+    /**
+     * The on-disk archive of spent codes, used if they are loaded lazily
+     */
+    private final SpentCodeArchive spentArchive;
     /**
      * The cap on numbers generated for command codes
      */
@@ -46,6 +99,74 @@ public class CodeManager {
      * Whether the same player can redeem the same code multiple times
      */
     private final boolean multiRedemptions;
+    /**
+     * The store codes are persisted in
+     */
+    private final CodeStore store;
+    /**
+     * The store of codes in the code storage file, which codes are imported
+     * from if the configured store is a different, empty one
+     */
+    private final FileCodeStore fileStore;
+    /**
+     * The store, if it is shared with other servers, or null otherwise
+     */
+    private final SharedCodeStore sharedStore;
+    /**
+     * How long codes fetched from a shared store are used before they are
+     * fetched again, in milliseconds
+     */
+    private final long sharedCacheMillis;
+    /**
+     * When each code kept in memory was last fetched from the shared store,
+     * keyed by normalised code. Entries are removed along with their codes
+     */
+    private final Map<String, Long> fetchedAt;
+    /**
+     * Whether spent codes are kept on disk and only loaded when asked for,
+     * rather than being kept in memory
+     */
+    private final boolean lazySpentCodes;
+    /**
+     * The interval between autosaves, in seconds, or 0 or less to disable
+     * timed autosaves
+     */
+    private final int autosaveInterval;
+    /**
+     * The amount of changes after which an autosave is started, or 0 or less
+     * to disable autosaves triggered by changes
+     */
+    private final int autosaveChanges;
+    /**
+     * The interval between flushes of the codes changed since the last save,
+     * in seconds, or 0 or less to disable them. Only used if saves are
+     * incremental
+     */
+    private final int flushInterval;
+    /**
+     * The longest time the save when the plugin is disabled may take, in
+     * milliseconds, or 0 or less to wait for it however long it takes
+     */
+    private final long shutdownTimeout;
+    /**
+     * Whether saves to a store which isn't incremental write only the codes
+     * which have changed since the last save, where possible
+     */
+    private final boolean incrementalSaves;
+    /**
+     * The normalised codes which have changed since the last save, if saves
+     * are incremental
+     */
+    private final Set<String> dirty;
+    /**
+     * The amount of records appended to the journal since the code store was
+     * last written
+     */
+    private final AtomicLong journalled;
+    /**
+     * Whether an autosave is currently queued or running
+     */
+    private final AtomicBoolean autosaving;
 
     /**
      * Creates a new CodeManager using the given code cap
@@ -60,66 +181,319 @@ public class CodeManager {
         final YamlConfiguration config = plugin.getFileManager().getConfig();
         maxCharacters = config.getInt("max-code-characters", maxCharacters);
         multiRedemptions = config.getBoolean("multiple-redemptions", false);
+        final FileManager files = plugin.getFileManager();
+        final String format = config.getString("storage-format", "json");
+        fileStore = new FileCodeStore(files.getCodeStore(),
+                files.getBinaryCodeStore(), files.getDeltaStore(),
+                format.equalsIgnoreCase("binary"), config.getBoolean(
+                        "parallel-loading", true), UUIDEncoding.fromName(config
+                        .getString("redeemer-encoding", "hex")),
+                plugin.getLogger());
+        if (format.equalsIgnoreCase("jdbc")) {
+            String url = config.getString("jdbc-url", "");
+            if (url.isEmpty()) {
+                url = "jdbc:sqlite:" + files.getFile("curcodes.db").getPath();
+            }
+            store = new JDBCCodeStore(url, config.getString("jdbc-username",
+                    ""), config.getString("jdbc-password", ""));
+        } else {
+            store = fileStore;
+        }
+        if (!config.getBoolean("shared-store", false)) {
+            sharedStore = null;
+        } else if (store instanceof SharedCodeStore) {
+            sharedStore = (SharedCodeStore) store;
+        } else {
+            plugin.getLogger().warning("shared-store requires the jdbc "
+                    + "storage format, so it has been disabled");
+            sharedStore = null;
+        }
+        sharedCacheMillis = config.getLong("shared-cache-seconds", 30) * 1000;
+        fetchedAt = new ConcurrentHashMap<>();
+        lazySpentCodes = config.getBoolean("lazy-spent-codes", false);
+        autosaveInterval = config.getInt("autosave-interval", 300);
+        autosaveChanges = config.getInt("autosave-changes", 1000);
+        flushInterval = config.getInt("flush-interval", 5);
+        shutdownTimeout = config.getLong("shutdown-save-timeout", 30) * 1000;
+        incrementalSaves = config.getString("save-mode", "full")
+                .equalsIgnoreCase("incremental");
+        dirty = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        journalled = new AtomicLong();
+        autosaving = new AtomicBoolean();
 
-        currentCodes = new ArrayList<>();
-        oldCodes = new ArrayList<>();
+        currentCodes = new LinkedHashMap<>();
+        oldCodes = new LinkedHashMap<>();
+        tableLock = new ReentrantReadWriteLock();
+        issued = new IssuedCodes();
+        generator = new CodeGenerator(issued, StandardEntropy.fromName(
+                config.getString("code-entropy"), StandardEntropy.FAST));
+        spentArchive = new SpentCodeArchive(files.getSpentArchive());
     }
 
     /**
      * Generates a CommandCode for the given command, which will have a
-     * different code to any which are currently in use
+     * different code to any which are currently in use. If isStoreBlocking is
+     * true, this writes to the store, so it is best called off the main thread
      * 
      * @param command
      *            The command to generate a CommandCode for
      * @param amount
      *            The amount of times this CommandCode should be redeemable
      * @return A CommandCode generated for the given command
+     * @throws IllegalStateException
+     *             If every possible code has already been issued
      */
     public CommandCode generateCode(final String command, final int amount) {
-        String code;
-        do {
-            // Continually assign it a new value until its value isn't already
-            // taken
-            code = generateRandomString();
-        } while (hasBeenUsed(code));
-
-        final CommandCode commandCode = new CommandCode(code, command, amount);
-        currentCodes.add(commandCode);
+        if (sharedStore != null) {
+            final CommandCode commandCode = generateShared(command, amount);
+            addCurrent(commandCode);
+            return commandCode;
+        }
+
+        final CommandCode commandCode = new CommandCode(nextUniqueCode(),
+                command, amount);
+        addCurrent(commandCode);
+        recordGenerated(commandCode);
         return commandCode;
     }
 
+    /**
+     * Generates a CommandCode and inserts it into the shared store, trying
+     * another code each time the chosen one has already been used by another
+     * server
+     * 
+     * @param command
+     *            The command to generate a CommandCode for
+     * @param amount
+     *            The amount of times the CommandCode should be redeemable
+     * @return A CommandCode which has been inserted into the shared store
+     * @throws IllegalStateException
+     *             If no unused code can be found, or the store can't be
+     *             written
+     */
+    private CommandCode generateShared(final String command, final int amount) {
+        for (int attempt = 0; attempt < MAX_SHARED_ATTEMPTS; attempt++) {
+            final CommandCode commandCode = new CommandCode(nextUniqueCode(),
+                    command, amount);
+            try {
+                if (sharedStore.insert(commandCode)) {
+                    fetchedAt.put(normalise(commandCode.getCode()),
+                            System.currentTimeMillis());
+                    return commandCode;
+                }
+            } catch (final StorageException e) {
+                throw new IllegalStateException("Could not store generated"
+                        + " code in the shared store", e);
+            }
+            // Another server has the code, which stays marked as issued here
+        }
+        throw new IllegalStateException("Could not find a code unused by other "
+                + "servers after " + MAX_SHARED_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Generates the given amount of CommandCodes for the given command. The
+     * codes are generated, added to the current codes and recorded
+     * asynchronously, and the returned future is then completed on the main
+     * thread, so it is safe to use the Bukkit API from its callbacks
+     * 
+     * @param command
+     *            The command to generate CommandCodes for
+     * @param timesUsable
+     *            The amount of times each CommandCode should be redeemable
+     * @param count
+     *            The amount of CommandCodes to generate
+     * @return A future which is completed with the generated CommandCodes
+     */
+    public CompletableFuture<List<CommandCode>> generateCodes(
+            final String command, final int timesUsable, final int count) {
+        final CompletableFuture<List<CommandCode>> future;
+        future = new CompletableFuture<>();
+        final BukkitScheduler scheduler = plugin.getServer().getScheduler();
+
+        scheduler.runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                final List<CommandCode> codes = new ArrayList<>(count);
+                RuntimeException failure = null;
+                try {
+                    for (int i = 0; i < count; i++) {
+                        codes.add(sharedStore != null ? generateShared(command,
+                                timesUsable) : new CommandCode(nextUniqueCode(),
+                                command, timesUsable));
+                    }
+                } catch (final RuntimeException e) {
+                    failure = e;
+                    // The codes reserved so far are never added, so they can
+                    // be issued again, unless they're already in a shared store
+                    if (sharedStore == null) {
+                        synchronized (issued) {
+                            for (final CommandCode code : codes) {
+                                issued.remove(code.getCode());
+                            }
+                        }
+                    }
+                }
+                // The code tables and the journal are safe to use from any
+                // thread, so the codes are added and recorded here, leaving
+                // the main thread only to complete the future. Codes already
+                // in a shared store exist even if the batch failed
+                if (failure == null || sharedStore != null) {
+                    addAllCurrent(codes);
+                }
+                if (failure == null && sharedStore == null) {
+                    recordAllGenerated(codes);
+                }
+
+                final RuntimeException error = failure;
+                scheduler.runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (error != null) {
+                            future.completeExceptionally(error);
+                        } else {
+                            future.complete(codes);
+                        }
+                    }
+                });
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Generates a code which hasn't been issued before and marks it as issued.
+     * Codes are marked as issued straight away, so codes generated one after
+     * another never collide with each other
+     * 
+     * @return A newly issued code
+     * @throws IllegalStateException
+     *             If every possible code has already been issued
+     */
+    private String nextUniqueCode() {
+        return generator.generate(maxCharacters);
+    }
+
+    /**
+     * Marks the given code as issued
+     * 
+     * @param code
+     *            The code to mark as issued
+     * @return Whether the code was newly issued
+     */
+    private boolean issue(final String code) {
+        synchronized (issued) {
+            return issued.add(code);
+        }
+    }
+
+    /**
+     * Checks whether the given code is a shared store's code which hasn't been
+     * fetched from the store recently enough to be used from memory
+     * 
+     * @param key
+     *            The normalised code to check
+     * @return Whether the code should be fetched from the shared store
+     */
+    private boolean isStale(final String key) {
+        if (sharedStore == null) {
+            return false;
+        }
+        final Long at = fetchedAt.get(key);
+        return at == null
+                || System.currentTimeMillis() - at >= sharedCacheMillis;
+    }
+
+    /**
+     * Fetches the given code from the shared store, replacing any copy of it
+     * in memory. If the store can't be read, the copy in memory is kept
+     * 
+     * @param code
+     *            The code to fetch
+     */
+    private void refresh(final String code) {
+        final String key = normalise(code);
+        final CommandCode fresh;
+        try {
+            fresh = sharedStore.find(code);
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not fetch code "
+                    + code + " from the shared store", e);
+            return;
+        }
+        // Only codes kept in memory are recorded, so misses, which may be for
+        // any string at all, don't build up
+        if (fresh != null) {
+            fetchedAt.put(key, System.currentTimeMillis());
+        } else {
+            fetchedAt.remove(key);
+        }
+
+        tableLock.writeLock().lock();
+        try {
+            currentCodes.remove(key);
+            oldCodes.remove(key);
+            if (fresh != null && fresh.isSpent()) {
+                addOld(fresh);
+            } else if (fresh != null) {
+                addCurrent(fresh);
+            }
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+        if (fresh != null) {
+            issue(fresh.getCode());
+        }
+    }
+
     /**
      * Checks for the existence of the given code, returing it's CommandCode
-     * object if it exists, or null otherwise
+     * object if it exists, or null otherwise. If the store is shared, the code
+     * is fetched from it unless it was fetched recently
      * 
      * @param code
      *            The code to get the CommandCode for
      * @return The CommandCode associated with the given code
      */
     public CommandCode getCurrentCommandCode(final String code) {
-        for (final CommandCode cc : currentCodes) {
-            if (cc.getCode().equalsIgnoreCase(code)) {
-                return cc;
-            }
+        final String key = normalise(code);
+        if (isStale(key)) {
+            refresh(code);
         }
-        return null;
+        return findCurrent(key);
     }
 
     /**
      * Checks for the existence of the given old code, returing it's CommandCode
-     * object if it exists, or null otherwise
+     * object if it exists, or null otherwise. If the store is shared, the code
+     * is fetched from it unless it was fetched recently. If spent codes are
+     * loaded lazily, the code is read from disk, and the returned CommandCode
+     * is a new copy each time
      * 
      * @param code
      *            The code to get the CommandCode for
      * @return The CommandCode associated with the given code
      */
     public CommandCode getSpentCommandCode(final String code) {
-        for (final CommandCode cc : oldCodes) {
-            if (cc.getCode().equalsIgnoreCase(code)) {
-                return cc;
-            }
+        final String key = normalise(code);
+        if (isStale(key)) {
+            refresh(code);
+        }
+        final CommandCode cc = findOld(key);
+        if (cc != null || !lazySpentCodes) {
+            return cc;
+        }
+
+        try {
+            return spentArchive.get(code);
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not read spent code " + code + " from the archive!",
+                    e);
+            return null;
         }
-        return null;
     }
 
     /**
@@ -130,21 +504,71 @@ public class CodeManager {
      *            The CommandCode to remove from the current codes
      */
     public boolean removeCommandCode(final CommandCode code) {
+        if (sharedStore != null && code != null) {
+            try {
+                sharedStore.retire(code);
+            } catch (final StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not retire code "
+                        + code.getCode() + " in the shared store", e);
+                return false;
+            }
+            removeCode(code);
+            // Pick up redemptions made on other servers before it was retired
+            refresh(code.getCode());
+            return true;
+        }
+
+        if (!removeCode(code)) {
+            return false;
+        }
+
+        recordRemoved(code);
+        return true;
+    }
+
+    /**
+     * Removes the given command code from the current codes, as with
+     * removeCommandCode, without recording it in the journal
+     * 
+     * @param code
+     *            The CommandCode to remove from the current codes
+     * @return Whether the code was removed
+     */
+    private boolean removeCode(final CommandCode code) {
         if (code == null) {
             return false;
         }
 
-        if (code.getRedeemers().size() > 0) {
-            currentCodes.remove(code);
-            return oldCodes.add(code);
-        } else {
-            return currentCodes.remove(code);
+        // The table lock is held throughout so that a save never sees the code
+        // in neither list
+        tableLock.writeLock().lock();
+        try {
+            if (!removeCurrent(code)) {
+                return false;
+            }
+
+            // Retiring the code stops any further redemptions being claimed,
+            // so whether it has been redeemed can't change after this
+            if (code.retire()) {
+                addOld(code);
+            } else {
+                // Nobody used it, so it won't be stored and can be issued again
+                synchronized (issued) {
+                    issued.remove(code.getCode());
+                }
+                fetchedAt.remove(normalise(code.getCode()));
+            }
+            return true;
+        } finally {
+            tableLock.writeLock().unlock();
         }
     }
 
     /**
      * Checks for the existence of the given code, returning it's command value
-     * if it exists, or null otherwise, and adding the given redeemer to it
+     * if it exists, or null otherwise, and adding the given redeemer to it.
+     * This may be called from any thread; the code's command is dispatched on
+     * the main thread, straight away if this is called from it
      * 
      * @param code
      *            The code being redeemed
@@ -152,27 +576,116 @@ public class CodeManager {
      *         isn't one
      */
     public CommandCode redeemCode(final UUID redeemer, final String code) {
-        for (final CommandCode cc : currentCodes) {
-            if (cc.getCode().equalsIgnoreCase(code)) {
-                if (multiRedemptions || !cc.getRedeemers().contains(redeemer)) {
-                    cc.addRedeemer(redeemer);
-                    if (cc.isSpent()) {
-                        currentCodes.remove(cc);
-                        oldCodes.add(cc);
-                    }
+        if (sharedStore != null) {
+            return redeemShared(redeemer, code);
+        }
 
-                    final Player player = plugin.getServer()
-                            .getPlayer(redeemer);
-                    final boolean isOp = player.isOp();
-                    player.setOp(true);
-                    plugin.getServer().dispatchCommand(player, cc.getCommand());
-                    player.setOp(isOp);
+        final CommandCode cc = getCurrentCommandCode(code);
+        if (cc == null) {
+            return null;
+        }
+        final int number = cc.claim(redeemer, multiRedemptions);
+        if (number == 0) {
+            return null;
+        }
+        recordRedeemed(cc, redeemer, number);
+
+        // Only one of this and removeCommandCode can remove the code from the
+        // current codes, and whichever does moves it to the old codes
+        if (cc.isSpent()) {
+            moveToOld(cc);
+        }
 
-                    return cc;
+        dispatchRedemption(redeemer, cc.getCommand());
+        return cc;
+    }
+
+    /**
+     * Redeems the given code by claiming a redemption in the shared store, so
+     * the code can't be redeemed more times than it allows across every
+     * server. The code is fetched from the store again afterwards
+     * 
+     * @param redeemer
+     *            The UUID of the player redeeming the code
+     * @param code
+     *            The code being redeemed
+     * @return The redeemed CommandCode, or null if it couldn't be redeemed
+     */
+    private CommandCode redeemShared(final UUID redeemer, final String code) {
+        final CommandCode cc = getCurrentCommandCode(code);
+        if (cc == null) {
+            return null;
+        }
+
+        final int number;
+        try {
+            number = sharedStore.claim(cc, redeemer, multiRedemptions);
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not redeem code "
+                    + code + " in the shared store", e);
+            return null;
+        }
+        refresh(cc.getCode());
+        if (number == 0) {
+            return null;
+        }
+
+        dispatchRedemption(redeemer, cc.getCommand());
+        final String key = normalise(code);
+        final CommandCode current = findCurrent(key);
+        final CommandCode fresh = current != null ? current : findOld(key);
+        return fresh == null ? cc : fresh;
+    }
+
+    /**
+     * Checks whether changes to codes are written straight to the store, as
+     * they are when it is shared with other servers or incremental, in which
+     * case looking up, redeeming or removing a code may block on the store,
+     * so it is best done off the main thread
+     * 
+     * @return Whether changes to codes may block on the store
+     */
+    public boolean isStoreBlocking() {
+        return sharedStore != null || store.isIncremental();
+    }
+
+    /**
+     * Runs the given command as the given redeemer, with op, on the main
+     * thread
+     * 
+     * @param redeemer
+     *            The UUID of the player who redeemed a code
+     * @param command
+     *            The command to run
+     */
+    private void dispatchRedemption(final UUID redeemer, final String command) {
+        final Server server = plugin.getServer();
+        final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                final Player player = server.getPlayer(redeemer);
+                if (player == null) {
+                    plugin.getLogger().warning("Player " + redeemer
+                            + " went offline before running redeemed command: "
+                            + command);
+                    return;
+                }
+
+                final boolean isOp = player.isOp();
+                player.setOp(true);
+                try {
+                    server.dispatchCommand(player, command);
+                } finally {
+                    player.setOp(isOp);
                 }
             }
+        };
+
+        if (server.isPrimaryThread()) {
+            dispatch.run();
+        } else {
+            server.getScheduler().runTask(plugin, dispatch);
         }
-        return null;
     }
 
     /**
@@ -183,35 +696,57 @@ public class CodeManager {
      * @return Whether the given code is currently being used
      */
     public boolean hasBeenUsed(final String code) {
-        for (final CommandCode cc : currentCodes) {
-            if (cc.getCode().equalsIgnoreCase(code)) {
-                return true;
-            }
-        }
-        for (final CommandCode cc : oldCodes) {
-            if (cc.getCode().equalsIgnoreCase(code)) {
+        final String key = normalise(code);
+        tableLock.readLock().lock();
+        try {
+            if (currentCodes.containsKey(key) || oldCodes.containsKey(key)) {
                 return true;
             }
+        } finally {
+            tableLock.readLock().unlock();
         }
-        return false;
+        return lazySpentCodes && spentArchive.contains(key);
     }
 
     /**
-     * Gets an unmodifiable list of currently available CommandCodes
+     * Gets an unmodifiable snapshot of currently available CommandCodes
      * 
      * @return An unmodifiable list of currently available CommandCode objects
      */
     public List<CommandCode> getAvailableCodes() {
-        return Collections.unmodifiableList(currentCodes);
+        return snapshot(currentCodes);
     }
 
     /**
-     * Gets an unmodifiable list of previous CommandCodes
+     * Gets an unmodifiable snapshot of previous CommandCodes. If spent codes
+     * are loaded lazily, each code in the list is read from disk when it is
+     * asked for
      * 
      * @return An unmodifiable list of previous CommandCode objects
      */
     public List<CommandCode> getPreviousCodes() {
-        return Collections.unmodifiableList(oldCodes);
+        if (lazySpentCodes) {
+            return spentArchive.view(snapshot(oldCodes));
+        }
+        return snapshot(oldCodes);
+    }
+
+    /**
+     * Copies the codes in the given code table, in order, while holding the
+     * table read lock
+     * 
+     * @param codes
+     *            The code table to copy
+     * @return An unmodifiable list of the codes in the given table
+     */
+    private List<CommandCode> snapshot(final Map<String, CommandCode> codes) {
+        tableLock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(codes
+                    .values()));
+        } finally {
+            tableLock.readLock().unlock();
+        }
     }
 
     /**
@@ -234,92 +769,898 @@ public class CodeManager {
     }
 
     /**
-     * Generates a random string
+     * Loads command codes from the configured store and adds them to the
+     * appropriate list, then replays any changes recorded in the journal since
+     * the store was last written. If the configured store is incremental and
+     * empty, codes are imported into it from the code storage file. If spent
+     * codes are loaded lazily, only the codes in the spent code archive are
+     * read from it; otherwise any codes in the archive are moved back into
+     * the store
      * 
-     * @return A random string of letters and numbers
+     * @throws StorageException
+     *             If something goes wrong loading the data, or parsing the JSON
      */
-    private String generateRandomString() {
-        final char[] chars = new char[maxCharacters];
-        for (int idx = 0; idx < chars.length; ++idx) {
-            chars[idx] = characters[r.nextInt(characters.length)];
+    public void loadCodes() throws StorageException {
+        final FileManager files = plugin.getFileManager();
+
+        // A save left running when the plugin was last disabled still holds
+        // the lock, and the codes mustn't be read until it has finished
+        final StorageLock lock = files.getStorageLock();
+        if (!lock.tryAcquire()) {
+            plugin.getLogger().info("Waiting for the previous save of codes"
+                    + " to finish...");
+            lock.acquire();
+        }
+
+        final File archiveFile = files.getSpentArchive().getFile();
+        final boolean unarchive = !lazySpentCodes && archiveFile.exists();
+        if (lazySpentCodes || unarchive) {
+            spentArchive.open(issued);
+        }
+
+        final boolean incremental = store.isIncremental();
+        final boolean importing = incremental && !store.hasData()
+                && fileStore.hasData();
+        final List<CommandCode> loaded = importing ? fileStore.load() : store
+                .load();
+        loadAll(loaded);
+
+        if (unarchive) {
+            loadArchivedCodes();
+        }
+
+        final CodeJournal journal = files.getJournal();
+        final int replayed = replayJournal(journal);
+
+        if (incremental && (importing || unarchive || replayed > 0)) {
+            // Incremental stores aren't written by saveCodes, so anything
+            // which didn't come from the store is written to it now
+            if (sharedStore != null) {
+                insertShared(importing ? null : loaded);
+            } else {
+                store.upsertAll(snapshotAll());
+            }
+            journal.rotate();
+            journal.discardRotated();
+            if (importing) {
+                plugin.getLogger().info("Imported " + loaded.size()
+                        + " codes from the code storage file");
+            }
+        } else if (unarchive) {
+            save(true);
+        } else if (!incremental && fileStore.isOutdated()) {
+            save(true);
+            plugin.getLogger().info("Migrated " + loaded.size()
+                    + " codes to the current JSON storage schema");
+        }
+
+        if (unarchive) {
+            // Once the archived codes are in the store, the archive is no
+            // longer needed
+            spentArchive.close();
+            archiveFile.delete();
+            plugin.getLogger().info("Moved " + spentArchive.size()
+                    + " spent codes out of the spent code archive");
         }
-        return new String(chars);
     }
 
     /**
-     * Loads command codes stored in JSON format from the code storage file and
-     * adds them to the appropriate list
+     * Adds the codes in memory which didn't come from the shared store to it.
+     * Other servers may have redeemed or retired codes since this server's
+     * copies were made, so codes the store already has are never overwritten;
+     * they are fetched from it again when next looked up instead
      * 
+     * @param fromStore
+     *            The codes loaded from the store, which aren't written, or
+     *            null if none of the codes came from it
      * @throws StorageException
-     *             If something goes wrong loading the data, or parsing the JSON
+     *             If the codes can't be stored
      */
-    public void loadCodes() throws StorageException {
-        final FileManager files = plugin.getFileManager();
-        final JSONFileHandler file = files.getCodeStore();
+    private void insertShared(final List<CommandCode> fromStore)
+            throws StorageException {
+        final Set<String> stored = new HashSet<>();
+        if (fromStore != null) {
+            for (final CommandCode code : fromStore) {
+                stored.add(normalise(code.getCode()));
+            }
+        }
+        int kept = 0;
+        for (final CommandCode code : snapshotAll()) {
+            if (!stored.contains(normalise(code.getCode()))
+                    && !sharedStore.insert(code)) {
+                kept++;
+            }
+        }
+        if (kept > 0) {
+            plugin.getLogger().info("Kept the shared store's copy of " + kept
+                    + " codes which were also changed here");
+        }
+    }
 
-        file.startReading();
-        JSONObject cur;
-        while ((cur = file.read()) != null) {
-            final CommandCode cc = CommandCode.fromJSONObject(cur);
+    /**
+     * Loads every code in the spent code archive into memory, for when lazy
+     * loading of spent codes has been turned off
+     * 
+     * @throws StorageException
+     *             If the archive can't be read
+     */
+    private void loadArchivedCodes() throws StorageException {
+        final int archived = spentArchive.size();
+        final List<CommandCode> codes = new ArrayList<>(archived);
+        for (int i = 0; i < archived; i++) {
+            final CommandCode cc = spentArchive.get(i);
+            if (findOld(normalise(cc.getCode())) == null) {
+                codes.add(cc);
+            }
+        }
+        loadAll(codes);
+    }
 
-            if (cc.isSpent()) {
-                oldCodes.add(cc);
-            } else {
-                currentCodes.add(cc);
+    /**
+     * Adds all of the given loaded CommandCodes to the appropriate lists,
+     * taking the table and issued code locks only once
+     * 
+     * @param codes
+     *            The CommandCodes which have been loaded
+     */
+    private void loadAll(final List<CommandCode> codes) {
+        tableLock.writeLock().lock();
+        try {
+            synchronized (issued) {
+                for (final CommandCode cc : codes) {
+                    loadCode(cc);
+                }
             }
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the given loaded CommandCode to the appropriate list
+     * 
+     * @param cc
+     *            The CommandCode which has been loaded
+     */
+    private void loadCode(final CommandCode cc) {
+        if (cc.isSpent()) {
+            addOld(cc);
+        } else {
+            addCurrent(cc);
         }
-        file.stopReading();
+        issue(cc.getCode());
     }
 
     /**
-     * Saves command codes to the code storage file in JSON format in order to
-     * load them when loadCodes is called upon the enabling of the plugin at a
-     * later date
+     * Saves command codes to the configured store, in order to load them when
+     * loadCodes is called upon the enabling of the plugin at a later date. If
+     * the store isn't incremental, the journal is rotated first and the
+     * rotated journal is only discarded once the codes have been written, so
+     * no recorded change is lost if this fails part way through. If saves are
+     * incremental, only the codes changed since the last save are written,
+     * until enough changes have built up that the store should be written in
+     * full. Incremental stores already hold every change, so they aren't
+     * written. This may be called from any thread
      * 
      * @throws StorageException
      *             If something goes wrong storing the data
      */
     public void saveCodes() throws StorageException {
+        save(false);
+    }
+
+    /**
+     * Saves the command codes when the plugin is disabled, waiting no longer
+     * than the configured shutdown-save-timeout. If saves are incremental,
+     * only the codes changed since the last flush are written, unless the
+     * store needs compacting, in which case every code is written as it would
+     * be by saveCodes, so that no change is left behind a delta file which
+     * can't be appended to. Changes which aren't written in time are reported,
+     * and are still in the journal, so they're replayed if the save doesn't
+     * finish. A save which doesn't finish in time carries on in the
+     * background, still holding the storage lock so the codes can't be loaded
+     * again until it is done, and then closes the store itself
+     * 
+     * @return Whether the save finished, successfully or not, in which case
+     *         the store should be closed
+     */
+    public boolean saveOnShutdown() {
+        final long pending = incrementalSaves ? dirty.size() : journalled
+                .get();
+        // Set by whichever of the save and the wait for it finishes first, so
+        // exactly one of them closes the store
+        final AtomicBoolean settled = new AtomicBoolean();
+        // Scheduled tasks are cancelled as the plugin is disabled, so the save
+        // is run on a thread of its own
+        final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws StorageException {
+                try {
+                    save(false);
+                } finally {
+                    if (!settled.compareAndSet(false, true)) {
+                        closeAbandoned();
+                    }
+                }
+                return null;
+            }
+        });
+        final Thread thread = new Thread(task, "CommandCodes shutdown save");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            if (shutdownTimeout > 0) {
+                task.get(shutdownTimeout, TimeUnit.MILLISECONDS);
+            } else {
+                task.get();
+            }
+            return true;
+        } catch (final ExecutionException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not save command codes!", e.getCause());
+            return true;
+        } catch (final TimeoutException e) {
+            if (!settled.compareAndSet(false, true)) {
+                // The save finished just as the wait for it ran out
+                return true;
+            }
+            plugin.getLogger().warning("Codes weren't saved within "
+                    + shutdownTimeout / 1000 + " seconds, leaving up to "
+                    + pending
+                    + (incrementalSaves ? " changed codes" : " changes")
+                    + " to be written in the background. They're kept in the"
+                    + " journal, and the codes won't be loaded again until"
+                    + " the save has finished");
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!settled.compareAndSet(false, true)) {
+                return true;
+            }
+            plugin.getLogger().warning("Interrupted while saving codes,"
+                    + " leaving up to " + pending
+                    + (incrementalSaves ? " changed codes" : " changes")
+                    + " to be written in the background");
+            return false;
+        }
+    }
+
+    /**
+     * Closes the store once a shutdown save which didn't finish in time is
+     * done, logging any failure to do so as the plugin is already disabled
+     */
+    private void closeAbandoned() {
+        try {
+            close();
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not close code storage", e);
+        }
+        plugin.getLogger().info("Finished saving codes in the background");
+    }
+
+    /**
+     * Saves command codes as described by saveCodes
+     * 
+     * @param full
+     *            Whether every code must be written, even if saves are
+     *            incremental and the store doesn't need compacting
+     * @throws StorageException
+     *             If something goes wrong storing the data
+     */
+    private synchronized void save(final boolean full)
+            throws StorageException {
         final FileManager files = plugin.getFileManager();
-        final JSONFileHandler file = files.getCodeStore();
+        final CodeJournal journal = files.getJournal();
+        final boolean incremental = store.isIncremental();
 
-        file.backup();
-        file.delete();
+        if (!incremental) {
+            journal.rotate();
+            journalled.set(0);
 
+            // Every change in the rotated journal was made in memory before
+            // being journalled, and marked as changed before that, so what is
+            // written includes all of them
+            final List<CommandCode> changed = new ArrayList<>();
+            final List<String> removed = new ArrayList<>();
+            final List<String> keys = drainDirty(changed, removed);
+            try {
+                // A delta file which needs rebasing can't be appended to, and
+                // shouldCompact says so, so every save checks it
+                if (incrementalSaves && !full && !fileStore.shouldCompact()) {
+                    if (!keys.isEmpty()) {
+                        store.saveChanges(changed, removed);
+                    }
+                } else {
+                    store.save(snapshotAll());
+                }
+            } catch (final StorageException e) {
+                // Keep the changes for the next save, as it may not be full
+                dirty.addAll(keys);
+                throw e;
+            }
+        }
+
+        // Codes archived since the journal was rotated aren't in the snapshot,
+        // so the rotated journal is only discarded once they're on disk
+        if (lazySpentCodes) {
+            spentArchive.force();
+        }
+        if (!incremental) {
+            journal.discardRotated();
+        }
+    }
+
+    /**
+     * Closes the store, the spent code archive and the journal, and releases
+     * the storage lock. This should be called after the codes are saved for
+     * the last time
+     * 
+     * @throws StorageException
+     *             If the journal can't be closed
+     */
+    public void close() throws StorageException {
+        final FileManager files = plugin.getFileManager();
+        try {
+            store.close();
+            spentArchive.close();
+            files.getJournal().close();
+        } finally {
+            files.getStorageLock().release();
+        }
+    }
+
+    /**
+     * Starts the timed autosave task, if an autosave interval is configured,
+     * and the task flushing changed codes if saves are incremental
+     */
+    public void scheduleAutosave() {
+        if (incrementalSaves && flushInterval > 0) {
+            final long ticks = flushInterval * 20L;
+            plugin.getServer().getScheduler()
+                    .runTaskTimerAsynchronously(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!dirty.isEmpty()) {
+                                autosave();
+                            }
+                        }
+                    }, ticks, ticks);
+        }
+        if (autosaveInterval <= 0) {
+            return;
+        }
+
+        final long ticks = autosaveInterval * 20L;
+        plugin.getServer().getScheduler()
+                .runTaskTimerAsynchronously(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (journalled.get() > 0) {
+                            autosave();
+                        }
+                    }
+                }, ticks, ticks);
+    }
+
+    /**
+     * Saves the codes on an asynchronous task, unless an autosave is already
+     * queued or running
+     */
+    private void autosave() {
+        if (!autosaving.compareAndSet(false, true)) {
+            return;
+        }
+
+        plugin.getServer().getScheduler()
+                .runTaskAsynchronously(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            saveCodes();
+                        } catch (final StorageException e) {
+                            plugin.getLogger().log(Level.SEVERE,
+                                    "Could not autosave command codes!", e);
+                        } finally {
+                            autosaving.set(false);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Starts an autosave if enough changes have been made since the last save
+     * 
+     * @param changes
+     *            The amount of changes made since the last save
+     */
+    private void checkAutosave(final long changes) {
+        if (autosaveChanges > 0 && changes >= autosaveChanges) {
+            autosave();
+        }
+    }
+
+    /**
+     * Replays the changes recorded in the given journal on top of the codes
+     * which have been loaded. Every change is skipped if it has already been
+     * applied, as the code storage file may have been written after it was
+     * journalled. Redemptions of the same code on different threads may have
+     * been journalled out of order, so they are applied in order of their
+     * redemption number
+     * 
+     * @param journal
+     *            The journal to replay
+     * @return The amount of records in the journal
+     * @throws StorageException
+     *             If the journal can't be read
+     */
+    private int replayJournal(final CodeJournal journal)
+            throws StorageException {
+        final Map<String, TreeMap<Integer, UUID>> pending = new HashMap<>();
+        int records = 0;
+
+        journal.startReading();
+        JSONObject record;
+        while ((record = journal.read()) != null) {
+            records++;
+            final String op = record.getString("op");
+            final String code = record.getString("code");
+            markDirty(code);
+
+            if (op.equals("generate")) {
+                if (!hasBeenUsed(code)) {
+                    addCurrent(new CommandCode(code,
+                            record.getString("command"),
+                            record.getInt("amount")));
+                    issue(code);
+                }
+            } else if (op.equals("redeem")) {
+                final String key = normalise(code);
+                TreeMap<Integer, UUID> redemptions = pending.get(key);
+                if (redemptions == null) {
+                    pending.put(key, redemptions = new TreeMap<>());
+                }
+                redemptions.put(record.getInt("number"),
+                        UUID.fromString(record.getString("redeemer")));
+                replayRedemptions(code, redemptions, false);
+            } else if (op.equals("remove")) {
+                removeCode(findCurrent(normalise(code)));
+            }
+        }
+        journal.stopReading();
+
+        // Anything left is after a gap, which means a record was lost, but
+        // the later redemptions still happened
+        for (final Map.Entry<String, TreeMap<Integer, UUID>> entry : pending
+                .entrySet()) {
+            replayRedemptions(entry.getKey(), entry.getValue(), true);
+        }
+        return records;
+    }
+
+    /**
+     * Applies the given pending redemptions of a code, in order, for as long
+     * as each is the code's next redemption. Redemptions which the code has
+     * already had are discarded
+     * 
+     * @param code
+     *            The code the redemptions are of
+     * @param redemptions
+     *            The pending redemptions, by redemption number
+     * @param force
+     *            Whether to apply redemptions even after a gap
+     */
+    private void replayRedemptions(final String code,
+            final TreeMap<Integer, UUID> redemptions, final boolean force) {
+        // Archived codes were written once they were spent, with every
+        // redemption they had, so only codes in memory need redemptions
+        final String key = normalise(code);
+        CommandCode cc = findCurrent(key);
+        if (cc == null) {
+            cc = findOld(key);
+        }
+        if (cc == null) {
+            redemptions.clear();
+            return;
+        }
+
+        while (!redemptions.isEmpty()) {
+            final int number = redemptions.firstKey();
+            final int count = cc.getRedemptionCount();
+            if (number <= count) {
+                redemptions.pollFirstEntry();
+            } else if (number == count + 1 || force) {
+                cc.claim(redemptions.pollFirstEntry().getValue(), true);
+                if (cc.isSpent()) {
+                    moveToOld(cc);
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records a newly generated code in the store if it is incremental, or
+     * in the journal otherwise, logging any failure to do so
+     * 
+     * @param code
+     *            The CommandCode which was generated
+     */
+    private void recordGenerated(final CommandCode code) {
+        if (!store.isIncremental()) {
+            markDirty(code.getCode());
+            journal(generateRecord(code));
+            return;
+        }
+        try {
+            store.upsert(code);
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not store generated code " + code.getCode(), e);
+        }
+    }
+
+    /**
+     * Records newly generated codes in the store if it is incremental, or in
+     * the journal otherwise, logging any failure to do so
+     * 
+     * @param codes
+     *            The CommandCodes which were generated
+     */
+    private void recordAllGenerated(final List<CommandCode> codes) {
+        if (!store.isIncremental()) {
+            final List<JSONObject> records = new ArrayList<>(codes.size());
+            for (final CommandCode code : codes) {
+                markDirty(code.getCode());
+                records.add(generateRecord(code));
+            }
+            journalAll(records);
+            return;
+        }
+        try {
+            store.upsertAll(codes);
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not store " + codes.size() + " generated codes", e);
+        }
+    }
+
+    /**
+     * Records a redemption of a code in the store if it is incremental, or in
+     * the journal otherwise, logging any failure to do so
+     * 
+     * @param code
+     *            The CommandCode which was redeemed
+     * @param redeemer
+     *            The UUID of the player who redeemed it
+     * @param number
+     *            The number of the redemption
+     */
+    private void recordRedeemed(final CommandCode code, final UUID redeemer,
+            final int number) {
+        if (!store.isIncremental()) {
+            markDirty(code.getCode());
+            journal(redeemRecord(code, redeemer, number));
+            return;
+        }
         try {
-            // Create a blank file
-            file.create();
+            store.recordRedemption(code, redeemer, number);
         } catch (final StorageException e) {
-            file.restoreBackup();
-            throw new StorageException(e);
+            plugin.getLogger().log(Level.SEVERE, "Could not store redemption "
+                    + "of code " + code.getCode() + " by " + redeemer, e);
         }
+    }
 
+    /**
+     * Records the removal of a code in the store if it is incremental, or in
+     * the journal otherwise, logging any failure to do so. Removed codes which
+     * have been redeemed are kept as spent codes
+     * 
+     * @param code
+     *            The CommandCode which was removed
+     */
+    private void recordRemoved(final CommandCode code) {
+        if (!store.isIncremental()) {
+            markDirty(code.getCode());
+            journal(removeRecord(code));
+            return;
+        }
         try {
-            file.startWriting();
-            for (final CommandCode code : currentCodes) {
-                file.write(code.toJSONObject());
+            if (code.getRedemptionCount() > 0) {
+                store.upsert(code);
+            } else {
+                store.remove(code);
             }
-            for (final CommandCode code : oldCodes) {
-                file.write(code.toJSONObject());
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not store removal of code " + code.getCode(), e);
+        }
+    }
+
+    /**
+     * Marks the given code as changed since the last save, if saves are
+     * incremental. This must be done after the change is made in memory but
+     * before it is journalled, so that if a save misses the change, the
+     * change is in the journal which is current after that save
+     * 
+     * @param code
+     *            The code which has changed
+     */
+    private void markDirty(final String code) {
+        if (incrementalSaves) {
+            dirty.add(normalise(code));
+        }
+    }
+
+    /**
+     * Takes every code marked as changed, unmarking it, and sorts them into
+     * codes which are still stored and codes which should no longer be. Each
+     * code's state is read after it is unmarked, so it includes every change
+     * made before it was marked
+     * 
+     * @param changed
+     *            The list to add codes still stored to
+     * @param removed
+     *            The list to add the normalised codes which should no longer
+     *            be stored to
+     * @return Every normalised code which was marked as changed
+     */
+    private List<String> drainDirty(final List<CommandCode> changed,
+            final List<String> removed) {
+        final List<String> keys = new ArrayList<>();
+        for (final Iterator<String> it = dirty.iterator(); it.hasNext();) {
+            keys.add(it.next());
+            it.remove();
+        }
+
+        tableLock.readLock().lock();
+        try {
+            for (final String key : keys) {
+                CommandCode cc = currentCodes.get(key);
+                if (cc == null) {
+                    cc = oldCodes.get(key);
+                }
+                // Codes which aren't in memory were either removed or moved
+                // to the spent code archive
+                if (cc != null) {
+                    changed.add(cc);
+                } else {
+                    removed.add(key);
+                }
             }
-            file.stopWriting();
+        } finally {
+            tableLock.readLock().unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * Appends the given record to the journal, logging any failure to do so
+     * 
+     * @param record
+     *            The record to append
+     */
+    private void journal(final JSONObject record) {
+        try {
+            plugin.getFileManager().getJournal().append(record);
+            checkAutosave(journalled.incrementAndGet());
         } catch (final StorageException e) {
-            file.restoreBackup();
-            throw new StorageException(e);
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not write to the code journal!", e);
         }
     }
 
-    private static final Random r = new Random();
-    private static final char[] characters;
+    /**
+     * Appends the given records to the journal, logging any failure to do so
+     * 
+     * @param records
+     *            The records to append
+     */
+    private void journalAll(final List<JSONObject> records) {
+        try {
+            plugin.getFileManager().getJournal().appendAll(records);
+            checkAutosave(journalled.addAndGet(records.size()));
+        } catch (final StorageException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not write to the code journal!", e);
+        }
+    }
 
-    static {
-        final StringBuilder sb = new StringBuilder();
-        for (char c = '0'; c <= '9'; ++c) {
-            sb.append(c);
+    private static JSONObject generateRecord(final CommandCode code) {
+        final JSONObject record = new JSONObject();
+        record.put("op", "generate");
+        record.put("code", code.getCode());
+        record.put("command", code.getCommand());
+        record.put("amount", code.getTimesUsable());
+        return record;
+    }
+
+    private static JSONObject redeemRecord(final CommandCode code,
+            final UUID redeemer, final int number) {
+        final JSONObject record = new JSONObject();
+        record.put("op", "redeem");
+        record.put("code", code.getCode());
+        record.put("redeemer", redeemer.toString());
+        record.put("number", number);
+        return record;
+    }
+
+    private static JSONObject removeRecord(final CommandCode code) {
+        final JSONObject record = new JSONObject();
+        record.put("op", "remove");
+        record.put("code", code.getCode());
+        return record;
+    }
+
+    /**
+     * Copies both the current and old code lists together while holding the
+     * table read lock, so no code can appear in both or neither
+     * 
+     * @return A list of every current code followed by every old code
+     */
+    private List<CommandCode> snapshotAll() {
+        tableLock.readLock().lock();
+        try {
+            final List<CommandCode> codes = new ArrayList<>(currentCodes.size()
+                    + oldCodes.size());
+            codes.addAll(currentCodes.values());
+            codes.addAll(oldCodes.values());
+            return codes;
+        } finally {
+            tableLock.readLock().unlock();
         }
-        for (char c = 'a'; c <= 'z'; ++c) {
-            sb.append(c);
+    }
+
+    /**
+     * Gets the current code with the given normalised code, holding the table
+     * read lock
+     * 
+     * @param key
+     *            The normalised code to look up
+     * @return The current CommandCode with the given code, or null
+     */
+    private CommandCode findCurrent(final String key) {
+        tableLock.readLock().lock();
+        try {
+            return currentCodes.get(key);
+        } finally {
+            tableLock.readLock().unlock();
         }
-        characters = sb.toString().toCharArray();
+    }
+
+    /**
+     * Gets the old code kept in memory with the given normalised code,
+     * holding the table read lock
+     * 
+     * @param key
+     *            The normalised code to look up
+     * @return The old CommandCode with the given code, or null
+     */
+    private CommandCode findOld(final String key) {
+        tableLock.readLock().lock();
+        try {
+            return oldCodes.get(key);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the given CommandCode to the current codes
+     * 
+     * @param code
+     *            The CommandCode to add to the current codes
+     */
+    private void addCurrent(final CommandCode code) {
+        tableLock.writeLock().lock();
+        try {
+            currentCodes.put(normalise(code.getCode()), code);
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds all of the given CommandCodes to the current codes, holding the
+     * table lock once for the whole batch
+     * 
+     * @param codes
+     *            The CommandCodes to add to the current codes
+     */
+    private void addAllCurrent(final List<CommandCode> codes) {
+        tableLock.writeLock().lock();
+        try {
+            for (final CommandCode code : codes) {
+                currentCodes.put(normalise(code.getCode()), code);
+            }
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the given CommandCode to the old codes, or to the
+     * spent code archive if spent codes are loaded lazily. If the code can't
+     * be archived, it is kept in memory instead
+     * 
+     * @param code
+     *            The CommandCode to add to the old codes
+     */
+    private void addOld(final CommandCode code) {
+        if (lazySpentCodes) {
+            try {
+                spentArchive.add(code);
+                return;
+            } catch (final StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not archive spent"
+                        + " code " + code.getCode() + ", keeping it in memory",
+                        e);
+            }
+        }
+
+        tableLock.writeLock().lock();
+        try {
+            oldCodes.put(normalise(code.getCode()), code);
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the given CommandCode from the current codes to the old codes, if
+     * it is still a current code, holding the table lock throughout so that a
+     * save never sees the code in neither list
+     * 
+     * @param code
+     *            The CommandCode to move to the old codes
+     * @return Whether the CommandCode was moved
+     */
+    private boolean moveToOld(final CommandCode code) {
+        tableLock.writeLock().lock();
+        try {
+            if (!removeCurrent(code)) {
+                return false;
+            }
+            addOld(code);
+            return true;
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the given CommandCode from the current codes, if it is the
+     * current code with its code
+     * 
+     * @param code
+     *            The CommandCode to remove from the current codes
+     * @return Whether the CommandCode was a current code
+     */
+    private boolean removeCurrent(final CommandCode code) {
+        tableLock.writeLock().lock();
+        try {
+            final String key = normalise(code.getCode());
+            if (currentCodes.get(key) != code) {
+                return false;
+            }
+            currentCodes.remove(key);
+            return true;
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Normalises the given code for use as a key in the code indexes, so that
+     * lookups are case insensitive
+     * 
+     * @param code
+     *            The code to normalise
+     * @return The normalised form of the given code
+     */
+    private static String normalise(final String code) {
+        return code.toLowerCase(Locale.ENGLISH);
     }
 }
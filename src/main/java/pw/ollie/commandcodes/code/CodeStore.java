@@ -0,0 +1,115 @@
+package pw.ollie.commandcodes.code;
+
+import java.util.List;
+import java.util.UUID;
+
+import pw.ollie.commandcodes.storage.StorageException;
+
+/**
+ * Somewhere command codes are persisted between runs of the plugin. Every
+ * store can be written as a whole by save or one change at a time by upsert,
+ * recordRedemption and remove, and an incremental store prefers the latter.
+ * Implementations must be safe to use from multiple threads at once
+ */
+public interface CodeStore {
+    /**
+     * Checks whether the store has any codes in it
+     * 
+     * @return Whether there are any stored codes
+     * @throws StorageException
+     *             If the store can't be read
+     */
+    boolean hasData() throws StorageException;
+
+    /**
+     * Loads every stored code
+     * 
+     * @return A list of every stored CommandCode
+     * @throws StorageException
+     *             If the store can't be read
+     */
+    List<CommandCode> load() throws StorageException;
+
+    /**
+     * Replaces the contents of the store with the given codes
+     * 
+     * @param codes
+     *            Every CommandCode which should be stored
+     * @throws StorageException
+     *             If the codes can't be stored
+     */
+    void save(List<CommandCode> codes) throws StorageException;
+
+    /**
+     * Stores the current state of the given changed codes and removes the
+     * given removed codes, leaving every other stored code as it is
+     * 
+     * @param changed
+     *            The CommandCodes which have changed since they were stored
+     * @param removed
+     *            The lower case codes which should no longer be stored
+     * @throws StorageException
+     *             If the changes can't be stored
+     */
+    void saveChanges(List<CommandCode> changed, List<String> removed)
+            throws StorageException;
+
+    /**
+     * Checks whether this store should be kept up to date one change at a
+     * time, in which case save needn't be called to persist changes. Other
+     * stores are cheaper to write in batches, from the journal
+     * 
+     * @return Whether this store prefers incremental changes
+     */
+    boolean isIncremental();
+
+    /**
+     * Stores the given code, replacing it if it is already stored
+     * 
+     * @param code
+     *            The CommandCode to store
+     * @throws StorageException
+     *             If the code can't be stored
+     */
+    void upsert(CommandCode code) throws StorageException;
+
+    /**
+     * Stores all of the given codes, replacing any which are already stored
+     * 
+     * @param codes
+     *            The CommandCodes to store
+     * @throws StorageException
+     *             If the codes can't be stored
+     */
+    void upsertAll(List<CommandCode> codes) throws StorageException;
+
+    /**
+     * Records a redemption of the given stored code
+     * 
+     * @param code
+     *            The CommandCode which was redeemed
+     * @param redeemer
+     *            The UUID of the player who redeemed it
+     * @param number
+     *            The number of the redemption, starting from 1
+     * @throws StorageException
+     *             If the redemption can't be stored
+     */
+    void recordRedemption(CommandCode code, UUID redeemer, int number)
+            throws StorageException;
+
+    /**
+     * Removes the given code from the store
+     * 
+     * @param code
+     *            The CommandCode to remove
+     * @throws StorageException
+     *             If the code can't be removed
+     */
+    void remove(CommandCode code) throws StorageException;
+
+    /**
+     * Releases any resources held by the store
+     */
+    void close();
+}
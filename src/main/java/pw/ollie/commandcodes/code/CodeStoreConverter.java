@@ -0,0 +1,91 @@
+package pw.ollie.commandcodes.code;
+
+import java.nio.ByteBuffer;
+
+import pw.ollie.commandcodes.storage.BinaryFileHandler;
+import pw.ollie.commandcodes.storage.JSONFileHandler;
+import pw.ollie.commandcodes.storage.StorageException;
+import pw.ollie.commandcodes.storage.org.json.JSONException;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser;
+import pw.ollie.commandcodes.util.UUIDEncoding;
+
+/**
+ * Converts stored command codes between the JSON and binary storage formats
+ */
+public final class CodeStoreConverter {
+    /**
+     * Writes every command code in the given JSON file to the given binary
+     * file, replacing its contents. The JSON file is left untouched
+     * 
+     * @param from
+     *            The JSON file to read codes from
+     * @param to
+     *            The binary file to write codes to
+     * @return The amount of codes converted
+     * @throws StorageException
+     *             If the codes can't be read or written
+     */
+    public static int jsonToBinary(final JSONFileHandler from,
+            final BinaryFileHandler to) throws StorageException {
+        int count = 0;
+        from.startReading();
+        try {
+            to.startWriting();
+            final JSONPullParser parser = from.parser();
+            CommandCode cur;
+            while ((cur = CommandCode.fromJSON(parser)) != null) {
+                to.write(cur.toBinary());
+                count++;
+            }
+            to.stopWriting();
+        } catch (final StorageException e) {
+            to.abortWriting();
+            throw e;
+        } catch (final JSONException e) {
+            to.abortWriting();
+            throw new StorageException("Could not parse stored codes!", e);
+        } finally {
+            from.stopReading();
+        }
+        return count;
+    }
+
+    /**
+     * Writes every command code in the given binary file to the given JSON
+     * file, replacing its contents. The binary file is left untouched
+     * 
+     * @param from
+     *            The binary file to read codes from
+     * @param to
+     *            The JSON file to write codes to
+     * @param redeemerEncoding
+     *            The encoding to write redeemers in
+     * @return The amount of codes converted
+     * @throws StorageException
+     *             If the codes can't be read or written
+     */
+    public static int binaryToJson(final BinaryFileHandler from,
+            final JSONFileHandler to, final UUIDEncoding redeemerEncoding)
+            throws StorageException {
+        int count = 0;
+        from.startReading();
+        try {
+            to.startWritingAtomically();
+            ByteBuffer cur;
+            while ((cur = from.read()) != null) {
+                to.write(CommandCode.fromBinary(cur).asJSON(redeemerEncoding));
+                count++;
+            }
+            to.stopWriting();
+        } catch (final StorageException e) {
+            to.abortWriting();
+            throw e;
+        } finally {
+            from.stopReading();
+        }
+        return count;
+    }
+
+    private CodeStoreConverter() {
+    }
+}
@@ -1,17 +1,57 @@
 package pw.ollie.commandcodes.code;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pw.ollie.commandcodes.storage.JSONWritable;
+import pw.ollie.commandcodes.storage.org.json.JSONArray;
+import pw.ollie.commandcodes.storage.org.json.JSONException;
 import pw.ollie.commandcodes.storage.org.json.JSONObject;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser.Event;
 import pw.ollie.commandcodes.util.GeneralUtil;
+import pw.ollie.commandcodes.util.PackedUUIDList;
+import pw.ollie.commandcodes.util.UUIDEncoding;
 
 /**
  * Represents a single command code, which possesses a code, a command, an
- * amount, and a list of redeemers if it has been redeemed
+ * amount, and a list of redeemers if it has been redeemed. Redemptions are
+ * claimed by atomically decrementing the code's remaining uses, so codes can
+ * be redeemed from multiple threads at once. Redeemers are kept packed in a
+ * PackedUUIDList rather than as UUID objects.
+ * 
+ * In version 2 of the JSON storage schema, a code's redeemers are stored as a
+ * JSON array, preceded by a redeemedCount giving its length. Version 1 stored
+ * them as a single string of UUIDs joined by '::', which is still read. The
+ * redeemedCount is only used to presize the list the array is read into, as
+ * every loaded code keeps its redeemers to check and show them
  */
-public final class CommandCode {
+public final class CommandCode implements JSONWritable {
+    /**
+     * The value of remainingUses once a code has been retired
+     */
+    private static final int RETIRED = -1;
+    /**
+     * The binary record flag set if the code is spent
+     */
+    private static final int FLAG_SPENT = 1;
+    /**
+     * The binary record flag set if the code is packed into a long
+     */
+    private static final int FLAG_PACKED = 2;
+    /**
+     * The most redeemers a stored redeemer count is trusted to presize a list
+     * for
+     */
+    private static final int MAX_PRESIZE = 1 << 16;
+
     /**
      * The integer code which represents this command code
      */
@@ -29,18 +69,24 @@ public final class CommandCode {
      * Whether the command code is spent (this is true if it isn't a currently
      * available code)
      */
-    private boolean spent;
+    private volatile boolean spent;
     /**
-     * A list of people who have redeemed this code
+     * The amount of times this code can still be redeemed, or RETIRED if it has
+     * been removed
      */
-    private List<UUID> redeemers;
+    private final AtomicInteger remainingUses;
+    /**
+     * The people who have redeemed this code, in order of redemption
+     */
+    private volatile PackedUUIDList redeemers;
 
     public CommandCode(final String code, final String command, final int amount) {
         this.code = code;
         this.command = command;
         timesUsable = amount;
 
-        redeemers = new ArrayList<>();
+        remainingUses = new AtomicInteger(amount);
+        redeemers = new PackedUUIDList();
         spent = false;
     }
 
@@ -48,8 +94,11 @@ public final class CommandCode {
             final List<UUID> redeemers, final boolean spent) {
         this(code, command, amount);
 
-        this.redeemers = redeemers;
-        this.spent = spent;
+        setRedeemers(redeemers);
+        if (spent) {
+            this.spent = true;
+            remainingUses.set(0);
+        }
     }
 
     public String getCode() {
@@ -64,28 +113,157 @@ public final class CommandCode {
         return timesUsable;
     }
 
+    /**
+     * Gets the amount of times this code can still be redeemed
+     * 
+     * @return The amount of remaining uses of this code
+     */
+    public int getRemainingUses() {
+        return Math.max(0, remainingUses.get());
+    }
+
+    /**
+     * Gets a read-only view of the people who have redeemed this code so far.
+     * UUID objects are only created as the view is accessed
+     * 
+     * @return A read-only view of this code's redeemers
+     */
     public List<UUID> getRedeemers() {
-        return redeemers;
+        return redeemers.view();
+    }
+
+    /**
+     * Gets the amount of times this code has been redeemed
+     * 
+     * @return The amount of redemptions of this code
+     */
+    public int getRedemptionCount() {
+        return redeemers.size();
     }
 
+    /**
+     * Checks whether the given player has redeemed this code
+     * 
+     * @param redeemer
+     *            The UUID of the player to check for
+     * @return Whether the given player has redeemed this code
+     */
+    public boolean hasRedeemed(final UUID redeemer) {
+        return redeemers.contains(redeemer);
+    }
+
+    /**
+     * Replaces this code's redeemers. This isn't safe to call while the code
+     * may be being redeemed
+     * 
+     * @param redeemers
+     *            The new redeemers of this code
+     */
     public void setRedeemers(final List<UUID> redeemers) {
+        final PackedUUIDList packed = new PackedUUIDList(redeemers.size());
+        for (final UUID redeemer : redeemers) {
+            packed.add(redeemer);
+        }
+        setRedeemers(packed, false);
+    }
+
+    /**
+     * Replaces this code's redeemers with the given list, which this code then
+     * owns. This isn't safe to call while the code may be being redeemed
+     * 
+     * @param redeemers
+     *            The new redeemers of this code
+     * @param spent
+     *            Whether this code should be marked as spent even if it has
+     *            uses left
+     */
+    void setRedeemers(final PackedUUIDList redeemers, final boolean spent) {
         this.redeemers = redeemers;
+
+        final int remaining = timesUsable - redeemers.size();
+        if (spent || remaining <= 0) {
+            this.spent = true;
+            remainingUses.set(0);
+        } else {
+            remainingUses.set(remaining);
+        }
     }
 
     public void addRedeemer(final UUID redeemer) {
-        redeemers.add(redeemer);
+        claimRedemption(redeemer, true);
+    }
+
+    /**
+     * Atomically claims one of this code's remaining redemptions for the given
+     * redeemer, adding them as a redeemer if successful
+     * 
+     * @param redeemer
+     *            The UUID of the player redeeming this code
+     * @param allowRepeat
+     *            Whether the redeemer may redeem this code more than once
+     * @return Whether a redemption was claimed for the redeemer
+     */
+    public boolean claimRedemption(final UUID redeemer,
+            final boolean allowRepeat) {
+
+        return claim(redeemer, allowRepeat) > 0;
+    }
+
+    /**
+     * Atomically claims one of this code's remaining redemptions for the given
+     * redeemer, adding them as a redeemer if successful
+     * 
+     * @param redeemer
+     *            The UUID of the player redeeming this code
+     * @param allowRepeat
+     *            Whether the redeemer may redeem this code more than once
+     * @return The number of the claimed redemption, starting from 1, or 0 if
+     *         a redemption couldn't be claimed
+     */
+    int claim(final UUID redeemer, final boolean allowRepeat) {
+        final PackedUUIDList list = redeemers;
+        // The membership check and the append have to happen together, so
+        // the same player can't claim twice at once
+        synchronized (list) {
+            if (!allowRepeat && list.contains(redeemer)) {
+                return 0;
+            }
 
-        if (timesUsable - redeemers.size() <= 0) {
-            spent = true;
+            int remaining;
+            do {
+                remaining = remainingUses.get();
+                if (remaining <= 0) {
+                    return 0;
+                }
+            } while (!remainingUses.compareAndSet(remaining, remaining - 1));
+
+            list.add(redeemer);
+            if (remaining == 1) {
+                spent = true;
+            }
+            return list.size();
         }
     }
 
+    /**
+     * Stops this code from being redeemed any more, marking it as spent
+     * 
+     * @return Whether anybody redeemed this code before it was retired
+     */
+    boolean retire() {
+        final int remaining = remainingUses.getAndSet(RETIRED);
+        spent = true;
+        return remaining != RETIRED && remaining < timesUsable;
+    }
+
     public boolean isSpent() {
         return spent;
     }
 
     /**
-     * Transforms this CommandCode into a JSONObject for storage
+     * Transforms this CommandCode into a JSONObject for storage. The state is
+     * read while holding the redeemer list's lock, so a redemption can't be
+     * half included
      * 
      * @return A JSONObject containing this CommandCode's data
      */
@@ -94,17 +272,209 @@ public final class CommandCode {
         json.put("code", code);
         json.put("command", command);
         json.put("amount", timesUsable);
-        json.put("spent", spent);
 
-        if (redeemers != null) {
-            json.put("redeemers", GeneralUtil.uuidListToString(redeemers, "::"));
+        final PackedUUIDList list = redeemers;
+        synchronized (list) {
+            final JSONArray array = new JSONArray();
+            for (final UUID redeemer : list.view()) {
+                array.put(redeemer.toString());
+            }
+            json.put("spent", spent);
+            json.put("redeemedCount", array.length());
+            json.put("redeemers", array);
         }
 
         return json;
     }
 
     /**
-     * Creates a CommandCode object using the data in the given JSONObject
+     * Writes this CommandCode as JSON straight to the given writer, producing
+     * the same object as toJSONObject but without building it first. As with
+     * toJSONObject, the state is read while holding the redeemer list's lock
+     * 
+     * @param out
+     *            The writer to write to
+     * @throws IOException
+     *             If the writer fails
+     */
+    @Override
+    public void writeJSON(final Writer out) throws IOException {
+        writeJSON(out, UUIDEncoding.HEX);
+    }
+
+    /**
+     * Writes this CommandCode as JSON straight to the given writer, as
+     * writeJSON does, with its redeemers in the given encoding
+     * 
+     * @param out
+     *            The writer to write to
+     * @param encoding
+     *            The encoding to write redeemers in
+     * @throws IOException
+     *             If the writer fails
+     */
+    public void writeJSON(final Writer out, final UUIDEncoding encoding)
+            throws IOException {
+        out.write("{\"code\":");
+        JSONObject.quote(code, out);
+        out.write(",\"command\":");
+        JSONObject.quote(command, out);
+        out.write(",\"amount\":");
+        out.write(Integer.toString(timesUsable));
+
+        final PackedUUIDList list = redeemers;
+        synchronized (list) {
+            final int count = list.size();
+            out.write(spent ? ",\"spent\":true" : ",\"spent\":false");
+            out.write(",\"redeemedCount\":");
+            out.write(Integer.toString(count));
+            // UUIDs never need escaping, so they can go straight in
+            out.write(",\"redeemers\":[");
+            if (count > 0) {
+                out.write('"');
+                list.writeTo(out, "\",\"", encoding);
+                out.write('"');
+            }
+            out.write("]}");
+        }
+    }
+
+    /**
+     * Gets a view of this CommandCode which is written as JSON with its
+     * redeemers in the given encoding
+     * 
+     * @param encoding
+     *            The encoding to write redeemers in
+     * @return This CommandCode, written with the given encoding
+     */
+    public JSONWritable asJSON(final UUIDEncoding encoding) {
+        if (encoding == UUIDEncoding.HEX) {
+            return this;
+        }
+        return new JSONWritable() {
+            @Override
+            public void writeJSON(final Writer out) throws IOException {
+                CommandCode.this.writeJSON(out, encoding);
+            }
+        };
+    }
+
+    /**
+     * Transforms this CommandCode into a binary record for storage. Codes made
+     * up of up to 12 lower case letters and numbers are stored as their
+     * packed base-36 value, and redeemers are stored as 16 raw bytes each
+     * 
+     * @return A buffer containing this CommandCode's data, ready to be read
+     */
+    public ByteBuffer toBinary() {
+        final long packed = code.equals(code.toLowerCase(Locale.ENGLISH))
+                ? IssuedCodes.pack(code) : IssuedCodes.NOT_PACKABLE;
+
+        final byte[] codeBytes = packed == IssuedCodes.NOT_PACKABLE ? code
+                .getBytes(StandardCharsets.UTF_8) : null;
+        final byte[] commandBytes = command.getBytes(StandardCharsets.UTF_8);
+
+        final PackedUUIDList list = redeemers;
+        synchronized (list) {
+            final int count = list.size();
+            final ByteBuffer buffer = ByteBuffer.allocate(1
+                    + (codeBytes == null ? 1 + 8 : 4 + codeBytes.length) + 4
+                    + commandBytes.length + 4 + 4 + count * 16);
+
+            int flags = spent ? FLAG_SPENT : 0;
+            if (codeBytes == null) {
+                flags |= FLAG_PACKED;
+            }
+            buffer.put((byte) flags);
+            if (codeBytes == null) {
+                buffer.put((byte) code.length()).putLong(packed);
+            } else {
+                buffer.putInt(codeBytes.length).put(codeBytes);
+            }
+            buffer.putInt(commandBytes.length).put(commandBytes);
+            buffer.putInt(timesUsable);
+            buffer.putInt(count);
+            list.writeTo(buffer);
+
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Creates a CommandCode object using the data in the given binary record,
+     * as written by toBinary
+     * 
+     * @param buffer
+     *            The buffer containing the record, from its position
+     * @return A CommandCode object who's data is the same as that stored in the
+     *         record
+     */
+    public static CommandCode fromBinary(final ByteBuffer buffer) {
+        final int flags = buffer.get();
+        final String code = readCode(flags, buffer);
+        final String command = readString(buffer);
+        final int amount = buffer.getInt();
+
+        // Each redeemer takes 16 bytes, so a count the record can't hold is
+        // rejected before anything is allocated for it
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 16) {
+            throw new BufferUnderflowException();
+        }
+        final PackedUUIDList list = new PackedUUIDList(Math.min(count,
+                MAX_PRESIZE));
+        for (int i = 0; i < count; i++) {
+            list.add(buffer.getLong(), buffer.getLong());
+        }
+
+        final CommandCode cc = new CommandCode(code, command, amount);
+        cc.setRedeemers(list, (flags & FLAG_SPENT) != 0);
+        return cc;
+    }
+
+    /**
+     * Reads only the code from the given binary record, as written by
+     * toBinary, without moving the buffer's position
+     * 
+     * @param buffer
+     *            The buffer containing the record, from its position
+     * @return The code stored in the record
+     */
+    static String codeOf(final ByteBuffer buffer) {
+        final ByteBuffer record = buffer.duplicate();
+        return readCode(record.get(), record);
+    }
+
+    /**
+     * Reads the code, which follows the flags, from a binary record
+     */
+    private static String readCode(final int flags, final ByteBuffer buffer) {
+        if ((flags & FLAG_PACKED) != 0) {
+            final int length = buffer.get();
+            return IssuedCodes.unpack(buffer.getLong(), length);
+        }
+        return readString(buffer);
+    }
+
+    /**
+     * Reads a UTF-8 string, prefixed with its length in bytes, from the given
+     * buffer
+     */
+    private static String readString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a CommandCode object using the data in the given JSONObject,
+     * which may use either version of the JSON storage schema. Redeemers are
+     * parsed straight into the code's packed list, in either UUID encoding
      * 
      * @param json
      *            The JSONObject which contains data for the new CommandCode
@@ -117,12 +487,124 @@ public final class CommandCode {
         final int amount = json.getInt("amount");
         final boolean spent = json.getBoolean("spent");
 
-        if (json.has("redeemers")) {
-            return new CommandCode(code, command, amount,
-                    GeneralUtil.uuidStringToList(json.getString("redeemers"),
-                            "::"), spent);
-        } else {
-            return new CommandCode(code, command, amount);
+        final CommandCode cc = new CommandCode(code, command, amount);
+        final Object stored = json.opt("redeemers");
+        if (stored instanceof JSONArray) {
+            final JSONArray array = (JSONArray) stored;
+            final PackedUUIDList list = new PackedUUIDList(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                GeneralUtil.parseUUID(array.getString(i), list);
+            }
+            cc.setRedeemers(list, spent);
+        } else if (stored != null) {
+            final PackedUUIDList list = new PackedUUIDList();
+            GeneralUtil.parseUUIDList(json.getString("redeemers"), "::", list);
+            cc.setRedeemers(list, spent);
+        }
+        return cc;
+    }
+
+    /**
+     * Reads the next CommandCode from the given parser, binding each field as
+     * it is read rather than building a JSONObject first. Either version of
+     * the JSON storage schema may be read, and unknown fields are skipped
+     * 
+     * @param parser
+     *            The parser to read from, positioned before a stored code
+     * @return A CommandCode object who's data is the same as that stored, or
+     *         null if the parser has no more values
+     * @throws JSONException
+     *             If the stored code is invalid or missing a field
+     */
+    public static CommandCode fromJSON(final JSONPullParser parser)
+            throws JSONException {
+        final Event start = parser.next();
+        if (start == Event.END) {
+            return null;
+        } else if (start != Event.START_OBJECT) {
+            throw parser.syntaxError("Expected a stored code");
+        }
+
+        String code = null;
+        String command = null;
+        int amount = 0;
+        boolean hasAmount = false;
+        Boolean spent = null;
+        int count = 0;
+        PackedUUIDList list = null;
+        while (parser.next() == Event.KEY) {
+            if (parser.textEquals("code")) {
+                parser.next();
+                code = parser.getText();
+            } else if (parser.textEquals("command")) {
+                parser.next();
+                command = parser.getText();
+            } else if (parser.textEquals("amount")) {
+                parser.next();
+                amount = parser.getInt();
+                hasAmount = true;
+            } else if (parser.textEquals("spent")) {
+                parser.next();
+                spent = parser.getBoolean();
+            } else if (parser.textEquals("redeemedCount")) {
+                parser.next();
+                count = parser.getInt();
+            } else if (parser.textEquals("redeemers")) {
+                list = readRedeemers(parser, count);
+            } else {
+                parser.skipValue();
+            }
+        }
+
+        if (code == null || command == null || !hasAmount || spent == null) {
+            throw parser.syntaxError("Stored code is missing a field");
         }
+        final CommandCode cc = new CommandCode(code, command, amount);
+        if (list != null) {
+            cc.setRedeemers(list, spent);
+        }
+        return cc;
+    }
+
+    /**
+     * Reads the redeemers of a stored code from the given parser, positioned
+     * before their value, parsing each from the parser's buffer. The count is
+     * the stored redeemedCount, which comes first in the current schema
+     */
+    private static PackedUUIDList readRedeemers(final JSONPullParser parser,
+            final int count) {
+        final PackedUUIDList list = new PackedUUIDList(Math.max(4,
+                Math.min(count, MAX_PRESIZE)));
+        try {
+            final Event value = parser.next();
+            if (value == Event.START_ARRAY) {
+                while (parser.next() == Event.STRING) {
+                    GeneralUtil.parseUUID(parser.getTextView(), list);
+                }
+                if (parser.getEvent() != Event.END_ARRAY) {
+                    throw parser.syntaxError("Expected a redeemer");
+                }
+            } else if (value == Event.STRING) {
+                // Version 1 of the schema
+                GeneralUtil.parseUUIDList(parser.getText(), "::", list);
+            } else {
+                throw parser.syntaxError("Expected redeemers");
+            }
+        } catch (final IllegalArgumentException e) {
+            throw parser.syntaxError(e.getMessage());
+        }
+        return list;
+    }
+
+    /**
+     * Checks whether the given stored code uses version 1 of the JSON storage
+     * schema, with its redeemers joined into a single string
+     * 
+     * @param json
+     *            The JSONObject containing a CommandCode's data
+     * @return Whether the code should be rewritten in the current schema
+     */
+    public static boolean isLegacyJSON(final JSONObject json) {
+        return json.opt("redeemers") instanceof String;
     }
 }
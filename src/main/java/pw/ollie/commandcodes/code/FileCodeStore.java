@@ -0,0 +1,506 @@
+package pw.ollie.commandcodes.code;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import pw.ollie.commandcodes.storage.BinaryFileHandler;
+import pw.ollie.commandcodes.storage.JSONFileHandler;
+import pw.ollie.commandcodes.storage.StorageException;
+import pw.ollie.commandcodes.storage.org.json.JSONException;
+import pw.ollie.commandcodes.storage.org.json.JSONObject;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser;
+import pw.ollie.commandcodes.util.UUIDEncoding;
+
+/**
+ * A CodeStore which keeps every command code in a single file, either
+ * curcodes.json or the binary curcodes.dat. The file is rewritten as a whole
+ * on every save, so this store isn't incremental. Changes may instead be
+ * appended to a delta file, curcodes.delta, which is applied on top of the
+ * code storage file when loading. The delta file starts with a header holding
+ * a checksum of the code storage file it applies to, so an outdated delta
+ * file, left by a crash part way through a save, is never applied to a newer
+ * file, however little time passed between them
+ */
+public final class FileCodeStore implements CodeStore {
+    /**
+     * The size from which JSON code storage files are loaded in parallel
+     */
+    private static final long PARALLEL_LOAD_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * The size below which the delta file is never merged into the code
+     * storage file
+     */
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    /**
+     * The JSON code storage file
+     */
+    private final JSONFileHandler file;
+    /**
+     * The binary code storage file
+     */
+    private final BinaryFileHandler binary;
+    /**
+     * The delta file, holding changes since the code storage file was written
+     */
+    private final JSONFileHandler delta;
+    /**
+     * Whether codes are stored in the binary format rather than JSON
+     */
+    private final boolean binaryStorage;
+    /**
+     * Whether large code storage files are parsed in parallel when loading
+     */
+    private final boolean parallelLoading;
+    /**
+     * The encoding redeemers are written to JSON files in
+     */
+    private final UUIDEncoding redeemerEncoding;
+    /**
+     * The logger to report conversions between formats to
+     */
+    private final Logger logger;
+    /**
+     * Whether the loaded delta file applied to a code storage file other than
+     * the current one, or ended with a record cut short, in which case it must
+     * be merged by a full save before any more changes are appended to it
+     */
+    private volatile boolean rebase;
+    /**
+     * Whether the loaded JSON code storage file uses an older version of the
+     * JSON storage schema, in which case it should be written in full
+     */
+    private volatile boolean outdated;
+    /**
+     * The identity of the code storage file in the configured format, as of
+     * the last load or save, or null if it hasn't been worked out yet
+     */
+    private volatile String activeBase;
+
+    public FileCodeStore(final JSONFileHandler file,
+            final BinaryFileHandler binary, final JSONFileHandler delta,
+            final boolean binaryStorage, final boolean parallelLoading,
+            final UUIDEncoding redeemerEncoding, final Logger logger) {
+        this.file = file;
+        this.binary = binary;
+        this.delta = delta;
+        this.binaryStorage = binaryStorage;
+        this.parallelLoading = parallelLoading;
+        this.redeemerEncoding = redeemerEncoding;
+        this.logger = logger;
+    }
+
+    @Override
+    public boolean hasData() {
+        return file.getFile().length() > 0 || binary.hasData()
+                || delta.getFile().length() > 0;
+    }
+
+    /**
+     * Loads every code from the code storage file in the configured format.
+     * If only a file in the other format has any codes in it, it is converted
+     * to the configured format first. Large files are parsed in parallel, if
+     * enabled. Any changes in the delta file are then applied
+     */
+    @Override
+    public List<CommandCode> load() throws StorageException {
+        // Read before any conversion, which changes the code storage file
+        rebase = false;
+        outdated = false;
+        final List<JSONObject> changes = readDelta();
+        final List<CommandCode> codes = loadFile();
+        activeBase = null;
+        if (changes != null && !activeBase().equals(readBase())) {
+            rebase = true;
+        }
+        return changes == null ? codes : applyDelta(codes, changes);
+    }
+
+    /**
+     * Loads every code from the code storage file, without the delta file
+     */
+    private List<CommandCode> loadFile() throws StorageException {
+        final boolean hasJSON = file.getFile().length() > 0;
+        if (binaryStorage && !binary.hasData() && hasJSON) {
+            logger.info("Converted "
+                    + CodeStoreConverter.jsonToBinary(file, binary)
+                    + " codes to the binary storage format");
+        } else if (!binaryStorage && !hasJSON && binary.hasData()) {
+            logger.info("Converted "
+                    + CodeStoreConverter.binaryToJson(binary, file,
+                            redeemerEncoding)
+                    + " codes to the JSON storage format");
+        }
+
+        final ParallelCodeLoader loader = new ParallelCodeLoader(
+                ForkJoinPool.commonPool());
+        final List<CommandCode> codes = new ArrayList<>();
+        if (binaryStorage) {
+            if (binary.hasData() && parallelLoading) {
+                return loader.loadBinary(binary);
+            } else if (binary.hasData()) {
+                binary.startReading();
+                try {
+                    ByteBuffer cur;
+                    while ((cur = binary.read()) != null) {
+                        codes.add(CommandCode.fromBinary(cur));
+                    }
+                } finally {
+                    binary.stopReading();
+                }
+            }
+        } else if (parallelLoading
+                && file.getFile().length() >= PARALLEL_LOAD_THRESHOLD) {
+            outdated = isLegacyFile();
+            return loader.loadJSON(file.getFile());
+        } else {
+            outdated = isLegacyFile();
+            file.startReading();
+            try {
+                final JSONPullParser parser = file.parser();
+                CommandCode cur;
+                while ((cur = CommandCode.fromJSON(parser)) != null) {
+                    codes.add(cur);
+                }
+            } catch (final JSONException e) {
+                throw new StorageException("Could not parse stored codes!", e);
+            } finally {
+                file.stopReading();
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Checks whether the JSON code storage file uses version 1 of the JSON
+     * storage schema. Every code in a file is written by the same save, so
+     * only the first is read
+     */
+    private boolean isLegacyFile() throws StorageException {
+        file.startReading();
+        try {
+            final JSONObject first = file.read();
+            return first != null && CommandCode.isLegacyJSON(first);
+        } finally {
+            file.stopReading();
+        }
+    }
+
+    /**
+     * Checks whether the loaded code storage file was written using an older
+     * version of the JSON storage schema, so it should be written in full to
+     * migrate it
+     * 
+     * @return Whether the code storage file should be migrated
+     */
+    public boolean isOutdated() {
+        return outdated;
+    }
+
+    /**
+     * Writes the given codes to a temporary file which then replaces the code
+     * storage file, so the code storage file is never left partly written.
+     * The file in the other format is deleted afterwards, so outdated codes
+     * aren't loaded from it if the format is switched back, as is the delta
+     * file, whose changes are now in the code storage file
+     */
+    @Override
+    public synchronized void save(final List<CommandCode> codes)
+            throws StorageException {
+        if (binaryStorage) {
+            try {
+                binary.startWriting();
+                for (final CommandCode code : codes) {
+                    binary.write(code.toBinary());
+                }
+                binary.stopWriting();
+            } catch (final StorageException e) {
+                binary.abortWriting();
+                throw e;
+            }
+            file.getFile().delete();
+        } else {
+            try {
+                file.startWritingAtomically();
+                for (final CommandCode code : codes) {
+                    file.write(code.asJSON(redeemerEncoding));
+                }
+                file.stopWriting();
+            } catch (final StorageException e) {
+                file.abortWriting();
+                throw e;
+            }
+            binary.getFile().delete();
+        }
+        delta.getFile().delete();
+        activeBase = null;
+        rebase = false;
+        outdated = false;
+    }
+
+    /**
+     * Appends the given changes to the delta file, forcing them to disk,
+     * rather than rewriting the code storage file. Each changed code is
+     * written in full, and each removed code as a record marking it removed.
+     * If the loaded delta file needs rebasing, its changes are only in memory
+     * until a full save, so this refuses to touch it
+     * 
+     * @throws IllegalStateException
+     *             If the delta file must be merged by a full save first
+     */
+    @Override
+    public synchronized void saveChanges(final List<CommandCode> changed,
+            final List<String> removed) throws StorageException {
+        if (rebase) {
+            throw new IllegalStateException(
+                    "The delta file must be merged by a full save first");
+        }
+        final String base = activeBase();
+        if (!base.equals(readBase())) {
+            // Left by a crash part way through a save, so it's outdated
+            delta.getFile().delete();
+        }
+
+        final boolean header = delta.getFile().length() == 0;
+        try {
+            delta.startAppending();
+            if (header) {
+                final JSONObject record = new JSONObject();
+                record.put("base", base);
+                delta.write(record);
+            }
+            for (final CommandCode code : changed) {
+                delta.write(code.asJSON(redeemerEncoding));
+            }
+            for (final String code : removed) {
+                final JSONObject record = new JSONObject();
+                record.put("code", code);
+                record.put("removed", true);
+                delta.write(record);
+            }
+            delta.force();
+            delta.stopWriting();
+        } catch (final StorageException e) {
+            delta.abortWriting();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether the delta file has grown large enough, compared to the
+     * code storage file, that it should be merged into it by a full save
+     * 
+     * @return Whether the next save should be a full save
+     */
+    public boolean shouldCompact() {
+        if (needsRebase() || outdated) {
+            return true;
+        }
+        final long size = (binaryStorage ? binary.getFile() : file.getFile())
+                .length();
+        return delta.getFile().length() > Math.max(MIN_COMPACT_SIZE, size / 2);
+    }
+
+    /**
+     * Checks whether the loaded delta file can't be appended to, because it
+     * applies to another code storage file or ends with a record cut short,
+     * so the next save must be a full save whatever else is asked for
+     * 
+     * @return Whether the next save must be a full save
+     */
+    public boolean needsRebase() {
+        return rebase;
+    }
+
+    /**
+     * Reads the changes in the delta file, if it applies to the current code
+     * storage file. A record cut short by a crash ends the changes, but a
+     * record which can't be parsed anywhere else means the delta file can't
+     * be trusted, so loading fails
+     * 
+     * @return The change records, or null if there are none to apply
+     * @throws StorageException
+     *             If the delta file can't be read, or a record other than
+     *             the last can't be parsed
+     */
+    private List<JSONObject> readDelta() throws StorageException {
+        final String base = readBase();
+        if (base == null) {
+            return null;
+        }
+        if (!isBaseOf(base, file.getFile())
+                && !isBaseOf(base, binary.getFile())) {
+            logger.warning("Ignoring outdated changes in "
+                    + delta.getFile().getName());
+            return null;
+        }
+
+        final List<JSONObject> changes = new ArrayList<>();
+        delta.startReading();
+        try {
+            delta.read();
+            JSONObject cur;
+            while ((cur = delta.read()) != null) {
+                changes.add(cur);
+            }
+        } catch (final StorageException e) {
+            if (!(e.getCause() instanceof JSONException) || !delta.isAtEnd()) {
+                throw new StorageException("Could not read change "
+                        + (changes.size() + 1) + " in "
+                        + delta.getFile().getName(), e);
+            }
+            logger.warning("Ignoring a change cut short in "
+                    + delta.getFile().getName());
+            rebase = true;
+        } finally {
+            delta.stopReading();
+        }
+        return changes;
+    }
+
+    /**
+     * Reads the header of the delta file, naming the code storage file it
+     * applies to
+     * 
+     * @return The identity of the code storage file the delta file applies
+     *         to, or null if there is no delta file
+     */
+    private String readBase() throws StorageException {
+        if (delta.getFile().length() == 0) {
+            return null;
+        }
+        delta.startReading();
+        try {
+            final JSONObject header = delta.read();
+            return header == null ? null : header.optString("base", null);
+        } catch (final StorageException e) {
+            return null;
+        } finally {
+            delta.stopReading();
+        }
+    }
+
+    /**
+     * Applies the given change records to the given codes, replacing changed
+     * codes and dropping removed ones
+     */
+    private static List<CommandCode> applyDelta(final List<CommandCode> codes,
+            final List<JSONObject> changes) {
+        final Map<String, CommandCode> merged = new LinkedHashMap<>(
+                codes.size() * 2);
+        for (final CommandCode code : codes) {
+            merged.put(code.getCode().toLowerCase(Locale.ENGLISH), code);
+        }
+        for (final JSONObject change : changes) {
+            final String key = change.getString("code").toLowerCase(
+                    Locale.ENGLISH);
+            if (change.optBoolean("removed")) {
+                merged.remove(key);
+            } else {
+                merged.put(key, CommandCode.fromJSONObject(change));
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Identifies the current version of the code storage file in the
+     * configured format. Only this store replaces the file, so its identity
+     * is worked out once after each load or save
+     */
+    private String activeBase() throws StorageException {
+        String base = activeBase;
+        if (base == null) {
+            activeBase = base = identify(binaryStorage ? binary.getFile()
+                    : file.getFile());
+        }
+        return base;
+    }
+
+    /**
+     * Checks whether the given delta file header names the given code storage
+     * file. Delta files written before checksums were used name the file by
+     * its length and modification time, and are still applied, after which
+     * the load asks for a full save as the header doesn't match
+     */
+    private static boolean isBaseOf(final String base, final File storage)
+            throws StorageException {
+        return base.equals(identify(storage)) || (storage.exists()
+                && base.equals(storage.length() + ":"
+                        + storage.lastModified()));
+    }
+
+    /**
+     * Identifies the current version of the given code storage file by its
+     * length and a checksum of its contents, which change whenever it is
+     * replaced with different codes
+     */
+    private static String identify(final File storage)
+            throws StorageException {
+        if (!storage.exists()) {
+            return "none";
+        }
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        try (final InputStream in = new FileInputStream(storage)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (final IOException e) {
+            throw new StorageException("Could not read "
+                    + storage.getName(), e);
+        }
+        return storage.length() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+
+    // Single changes are appended to the delta file, which is merged into
+    // the code storage file by the next full save
+
+    @Override
+    public void upsert(final CommandCode code) throws StorageException {
+        saveChanges(Collections.singletonList(code),
+                Collections.<String> emptyList());
+    }
+
+    @Override
+    public void upsertAll(final List<CommandCode> codes)
+            throws StorageException {
+        saveChanges(codes, Collections.<String> emptyList());
+    }
+
+    @Override
+    public void recordRedemption(final CommandCode code, final UUID redeemer,
+            final int number) throws StorageException {
+        // Code records hold every redeemer, so the whole code is written
+        upsert(code);
+    }
+
+    @Override
+    public void remove(final CommandCode code) throws StorageException {
+        saveChanges(Collections.<CommandCode> emptyList(), Collections
+                .singletonList(code.getCode().toLowerCase(Locale.ENGLISH)));
+    }
+
+    @Override
+    public void close() {
+    }
+}
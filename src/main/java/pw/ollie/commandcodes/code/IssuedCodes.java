@@ -0,0 +1,250 @@
+package pw.ollie.commandcodes.code;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import pw.ollie.commandcodes.util.LongHashSet;
+
+/**
+ * Keeps track of every code which has been issued, so that newly generated
+ * codes can be checked for uniqueness in constant time. Codes made up of up to
+ * 12 letters and numbers are packed into a long using their base-36 value,
+ * and any other codes are kept as strings
+ */
+public final class IssuedCodes {
+    /**
+     * The alphabet codes are made up of, in order of base-36 digit value
+     */
+    static final char[] ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz"
+            .toCharArray();
+    /**
+     * The maximum length of a code which can be packed into a long
+     */
+    static final int MAX_PACKED_LENGTH = 12;
+    /**
+     * The value returned by pack when a code can't be packed into a long
+     */
+    static final long NOT_PACKABLE = -1L;
+
+    /**
+     * The packed values of issued codes
+     */
+    private final LongHashSet packed;
+    /**
+     * Issued codes which can't be packed, in normalised form
+     */
+    private final Set<String> unpacked;
+    /**
+     * The amount of packed codes issued of each length
+     */
+    private final long[] lengthCounts;
+
+    public IssuedCodes() {
+        packed = new LongHashSet();
+        unpacked = new HashSet<>();
+        lengthCounts = new long[MAX_PACKED_LENGTH + 1];
+    }
+
+    /**
+     * Marks the given code as issued
+     * 
+     * @param code
+     *            The code to mark as issued
+     * @return Whether the code was newly issued, i.e false if it had already
+     *         been issued
+     */
+    public boolean add(final String code) {
+        final long key = pack(code);
+        if (key == NOT_PACKABLE) {
+            return unpacked.add(code.toLowerCase(Locale.ENGLISH));
+        }
+        return addPacked(key, code.length());
+    }
+
+    /**
+     * Checks whether the given code has been issued
+     * 
+     * @param code
+     *            The code to check
+     * @return Whether the given code has been issued
+     */
+    public boolean contains(final String code) {
+        final long key = pack(code);
+        if (key == NOT_PACKABLE) {
+            return unpacked.contains(code.toLowerCase(Locale.ENGLISH));
+        }
+        return packed.contains(key);
+    }
+
+    /**
+     * Releases the given code, allowing it to be issued again
+     * 
+     * @param code
+     *            The code to release
+     * @return Whether the code had been issued
+     */
+    public boolean remove(final String code) {
+        final long key = pack(code);
+        if (key == NOT_PACKABLE) {
+            return unpacked.remove(code.toLowerCase(Locale.ENGLISH));
+        }
+        if (packed.remove(key)) {
+            lengthCounts[code.length()]--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the code with the given packed value and length as issued
+     * 
+     * @param key
+     *            The packed value of the code
+     * @param length
+     *            The length of the code
+     * @return Whether the code was newly issued
+     */
+    boolean addPacked(final long key, final int length) {
+        if (packed.add(key)) {
+            lengthCounts[length]++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the code with the given packed value has been issued
+     * 
+     * @param key
+     *            The packed value of the code
+     * @return Whether the code has been issued
+     */
+    boolean containsPacked(final long key) {
+        return packed.contains(key);
+    }
+
+    /**
+     * Gets the amount of codes of the given length which have been issued.
+     * Only codes which can be packed are counted, so this is always 0 for
+     * codes longer than MAX_PACKED_LENGTH
+     * 
+     * @param length
+     *            The length of code
+     * @return The amount of issued codes of the given length
+     */
+    public long countOfLength(final int length) {
+        return length > MAX_PACKED_LENGTH ? 0 : lengthCounts[length];
+    }
+
+    /**
+     * Gets the amount of codes which have been issued
+     * 
+     * @return The amount of issued codes
+     */
+    public int size() {
+        return packed.size() + unpacked.size();
+    }
+
+    /**
+     * Packs the given code into a long. Codes of different lengths are offset
+     * from each other so that, for example, '0a' and 'a' don't share a value
+     * 
+     * @param code
+     *            The code to pack
+     * @return The packed value of the code, or NOT_PACKABLE if it is too long
+     *         or contains characters other than letters and numbers
+     */
+    static long pack(final String code) {
+        final int length = code.length();
+        if (length > MAX_PACKED_LENGTH) {
+            return NOT_PACKABLE;
+        }
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            final int digit = digit(code.charAt(i));
+            if (digit < 0) {
+                return NOT_PACKABLE;
+            }
+            value = value * 36 + digit;
+        }
+        return lengthOffset(length) + value;
+    }
+
+    /**
+     * Unpacks the given value of a code with the given length back into the
+     * code, in lower case
+     * 
+     * @param key
+     *            The packed value of the code
+     * @param length
+     *            The length of the code
+     * @return The code with the given packed value
+     */
+    static String unpack(final long key, final int length) {
+        long value = key - lengthOffset(length);
+        final char[] chars = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (value % 36)];
+            value /= 36;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Gets the amount of different codes with the given length, or
+     * Long.MAX_VALUE if there are too many to be counted in a long
+     * 
+     * @param length
+     *            The length of code
+     * @return The amount of codes which have the given length
+     */
+    static long keyspace(final int length) {
+        if (length > MAX_PACKED_LENGTH) {
+            return Long.MAX_VALUE;
+        }
+        long count = 1;
+        for (int i = 0; i < length; i++) {
+            count *= 36;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the base-36 value of the given character, ignoring case
+     * 
+     * @param c
+     *            The character to get the value of
+     * @return The value of the character, or -1 if it isn't a letter or
+     *         number in the alphabet
+     */
+    static int digit(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'Z') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the packed value of the first code with the given length, which is
+     * the amount of codes which are shorter than the given length
+     * 
+     * @param length
+     *            The length of code
+     * @return The packed value of the first code with the given length
+     */
+    static long lengthOffset(final int length) {
+        long offset = 0;
+        long count = 1;
+        for (int i = 0; i < length; i++) {
+            offset += count;
+            count *= 36;
+        }
+        return offset;
+    }
+}
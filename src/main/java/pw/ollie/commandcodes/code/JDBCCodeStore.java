@@ -0,0 +1,584 @@
+package pw.ollie.commandcodes.code;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import pw.ollie.commandcodes.storage.StorageException;
+
+/**
+ * A CodeStore which keeps command codes in a database through JDBC, such as
+ * an SQLite or H2 database file. Each code is a row keyed by its lower case
+ * code, with its redeemers in a separate table keyed by code and redemption
+ * number, so a redemption is stored by updating one row and inserting one.
+ * Changes to many codes at once are sent in prepared statement batches. The
+ * database may be shared by several servers, in which case redemptions are
+ * claimed with an optimistic compare-and-set of a code's remaining uses, which
+ * is retried if another server changed them first. All statements share one
+ * connection, so every method is synchronised
+ */
+public final class JDBCCodeStore implements SharedCodeStore {
+    /**
+     * The amount of statements sent to the database in each batch
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The amount of times a claim is attempted before giving up, if other
+     * servers keep changing the code's remaining uses first
+     */
+    private static final int MAX_CLAIM_ATTEMPTS = 16;
+
+    private static final String CODES = "commandcodes_codes";
+    private static final String REDEMPTIONS = "commandcodes_redemptions";
+
+    /**
+     * The JDBC URL of the database
+     */
+    private final String url;
+    /**
+     * The username and password for the database, which may be empty
+     */
+    private final String username;
+    private final String password;
+
+    /**
+     * The connection to the database, opened when it is first needed
+     */
+    private Connection connection;
+
+    /**
+     * Creates a new JDBCCodeStore for the database at the given URL
+     * 
+     * @param url
+     *            The JDBC URL of the database, e.g jdbc:sqlite:codes.db
+     * @param username
+     *            The username for the database, or an empty string for none
+     * @param password
+     *            The password for the database, or an empty string for none
+     */
+    public JDBCCodeStore(final String url, final String username,
+            final String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    public synchronized boolean hasData() throws StorageException {
+        try (Statement statement = connect().createStatement();
+                ResultSet result = statement.executeQuery("SELECT 1 FROM "
+                        + CODES + " LIMIT 1")) {
+            return result.next();
+        } catch (final SQLException e) {
+            throw new StorageException("Could not query code database!", e);
+        }
+    }
+
+    @Override
+    public synchronized List<CommandCode> load() throws StorageException {
+        final Connection conn = connect();
+        try (Statement statement = conn.createStatement()) {
+            final Map<String, List<UUID>> redeemers = new HashMap<>();
+            try (ResultSet result = statement.executeQuery("SELECT code_key, "
+                    + "redeemer FROM " + REDEMPTIONS
+                    + " ORDER BY code_key, number")) {
+                while (result.next()) {
+                    final String key = result.getString(1);
+                    List<UUID> list = redeemers.get(key);
+                    if (list == null) {
+                        redeemers.put(key, list = new ArrayList<>());
+                    }
+                    list.add(UUID.fromString(result.getString(2)));
+                }
+            }
+
+            final List<CommandCode> codes = new ArrayList<>();
+            try (ResultSet result = statement.executeQuery("SELECT code_key, "
+                    + "code, command, amount, spent FROM " + CODES)) {
+                while (result.next()) {
+                    List<UUID> list = redeemers.get(result.getString(1));
+                    if (list == null) {
+                        list = new ArrayList<>(0);
+                    }
+                    codes.add(new CommandCode(result.getString(2), result
+                            .getString(3), result.getInt(4), list, result
+                            .getInt(5) != 0));
+                }
+            }
+            return codes;
+        } catch (final SQLException | IllegalArgumentException e) {
+            throw new StorageException(
+                    "Could not load codes from database!", e);
+        }
+    }
+
+    @Override
+    public synchronized void save(final List<CommandCode> codes)
+            throws StorageException {
+        final Connection conn = connect();
+        try {
+            try (Statement statement = conn.createStatement()) {
+                statement.executeUpdate("DELETE FROM " + REDEMPTIONS);
+                statement.executeUpdate("DELETE FROM " + CODES);
+            }
+            insertAll(conn, codes);
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not save codes to database!", e);
+        }
+    }
+
+    @Override
+    public synchronized void saveChanges(final List<CommandCode> changed,
+            final List<String> removed) throws StorageException {
+        final Connection conn = connect();
+        final List<String> keys = new ArrayList<>(changed.size()
+                + removed.size());
+        for (final CommandCode code : changed) {
+            keys.add(key(code));
+        }
+        keys.addAll(removed);
+        try {
+            deleteAll(conn, keys);
+            insertAll(conn, changed);
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException(
+                    "Could not save changes to database!", e);
+
+        }
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    @Override
+    public void upsert(final CommandCode code) throws StorageException {
+        final List<CommandCode> codes = new ArrayList<>(1);
+        codes.add(code);
+        upsertAll(codes);
+    }
+
+    @Override
+    public synchronized void upsertAll(final List<CommandCode> codes)
+            throws StorageException {
+        final Connection conn = connect();
+        final List<String> keys = new ArrayList<>(codes.size());
+        for (final CommandCode code : codes) {
+            keys.add(key(code));
+        }
+        try {
+            deleteAll(conn, keys);
+            insertAll(conn, codes);
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not store codes in database!", e);
+        }
+    }
+
+    @Override
+    public synchronized void recordRedemption(final CommandCode code,
+            final UUID redeemer, final int number) throws StorageException {
+        final Connection conn = connect();
+        final String key = key(code);
+        final int remaining = Math.max(0, code.getTimesUsable() - number);
+        try {
+            // Redemptions may be recorded out of order, so remaining uses only
+            // ever go down
+            try (PreparedStatement update = conn.prepareStatement("UPDATE "
+                    + CODES + " SET remaining = ?, spent = ? WHERE code_key = ?"
+                    + " AND remaining > ?")) {
+                update.setInt(1, remaining);
+                update.setInt(2, remaining == 0 ? 1 : 0);
+                update.setString(3, key);
+                update.setInt(4, remaining);
+                update.executeUpdate();
+            }
+            try (PreparedStatement insert = conn.prepareStatement("INSERT INTO "
+                    + REDEMPTIONS + " (code_key, number, redeemer) VALUES "
+                    + "(?, ?, ?)")) {
+                insert.setString(1, key);
+                insert.setInt(2, number);
+                insert.setString(3, redeemer.toString());
+                insert.executeUpdate();
+            }
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not store redemption of "
+                    + code.getCode() + " in database!", e);
+        }
+    }
+
+    @Override
+    public synchronized void remove(final CommandCode code)
+            throws StorageException {
+        final Connection conn = connect();
+        final List<String> keys = new ArrayList<>(1);
+        keys.add(key(code));
+        try {
+            deleteAll(conn, keys);
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not remove " + code.getCode()
+                    + " from database!", e);
+        }
+    }
+
+    @Override
+    public synchronized CommandCode find(final String code)
+            throws StorageException {
+        final Connection conn = connect();
+        final String key = code.toLowerCase(Locale.ENGLISH);
+        try {
+            final CommandCode found = find(conn, key);
+            conn.commit();
+            return found;
+        } catch (final SQLException | IllegalArgumentException e) {
+            rollback(conn);
+            throw new StorageException("Could not fetch " + code
+                    + " from database!", e);
+        }
+    }
+
+    @Override
+    public synchronized boolean insert(final CommandCode code)
+            throws StorageException {
+        final Connection conn = connect();
+        final String key = key(code);
+        try {
+            if (exists(conn, key)) {
+                conn.rollback();
+                return false;
+            }
+            final List<CommandCode> codes = new ArrayList<>(1);
+            codes.add(code);
+            insertAll(conn, codes);
+            conn.commit();
+            return true;
+        } catch (final SQLException e) {
+            rollback(conn);
+            // Another server may have inserted the same code in between
+            try {
+                final boolean exists = exists(conn, key);
+                conn.rollback();
+                if (exists) {
+                    return false;
+                }
+            } catch (final SQLException ignore) {
+            }
+            throw new StorageException("Could not insert " + code.getCode()
+                    + " into database!", e);
+        }
+    }
+
+    @Override
+    public synchronized int claim(final CommandCode code, final UUID redeemer,
+            final boolean allowRepeat) throws StorageException {
+        final Connection conn = connect();
+        final String key = key(code);
+        try {
+            for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+                final int amount;
+                final int remaining;
+                try (PreparedStatement select = conn.prepareStatement("SELECT "
+                        + "amount, remaining FROM " + CODES
+                        + " WHERE code_key = ?")) {
+                    select.setString(1, key);
+                    try (ResultSet result = select.executeQuery()) {
+                        if (!result.next()) {
+                            conn.rollback();
+                            return 0;
+                        }
+                        amount = result.getInt(1);
+                        remaining = result.getInt(2);
+                    }
+                }
+                if (remaining <= 0
+                        || (!allowRepeat && hasRedeemed(conn, key, redeemer))) {
+                    conn.rollback();
+                    return 0;
+                }
+
+                // Only succeeds if no other server has claimed a redemption
+                // since the remaining uses were read
+                final int updated;
+                try (PreparedStatement update = conn.prepareStatement("UPDATE "
+                        + CODES + " SET remaining = ?, spent = ? WHERE "
+                        + "code_key = ? AND remaining = ?")) {
+                    update.setInt(1, remaining - 1);
+                    update.setInt(2, remaining == 1 ? 1 : 0);
+                    update.setString(3, key);
+                    update.setInt(4, remaining);
+                    updated = update.executeUpdate();
+                }
+                if (updated == 0) {
+                    // Start a new transaction so the next read isn't stale
+                    conn.rollback();
+                    continue;
+                }
+
+                final int number = amount - remaining + 1;
+                try (PreparedStatement insert = conn.prepareStatement("INSERT "
+                        + "INTO " + REDEMPTIONS + " (code_key, number, "
+                        + "redeemer) VALUES (?, ?, ?)")) {
+                    insert.setString(1, key);
+                    insert.setInt(2, number);
+                    insert.setString(3, redeemer.toString());
+                    insert.executeUpdate();
+                }
+                conn.commit();
+                return number;
+            }
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not claim redemption of "
+                    + code.getCode() + " in database!", e);
+        }
+        throw new StorageException("Could not claim redemption of "
+                + code.getCode() + " after " + MAX_CLAIM_ATTEMPTS
+                + " attempts, as it kept being redeemed elsewhere");
+    }
+
+    @Override
+    public synchronized void retire(final CommandCode code)
+            throws StorageException {
+        final Connection conn = connect();
+        final String key = key(code);
+        try {
+            try (PreparedStatement update = conn.prepareStatement("UPDATE "
+                    + CODES + " SET remaining = 0, spent = 1 WHERE "
+                    + "code_key = ?")) {
+                update.setString(1, key);
+                update.executeUpdate();
+            }
+            try (PreparedStatement delete = conn.prepareStatement("DELETE FROM "
+                    + CODES + " WHERE code_key = ? AND NOT EXISTS (SELECT 1 "
+                    + "FROM " + REDEMPTIONS + " WHERE code_key = ?)")) {
+                delete.setString(1, key);
+                delete.setString(2, key);
+                delete.executeUpdate();
+            }
+            conn.commit();
+        } catch (final SQLException e) {
+            rollback(conn);
+            throw new StorageException("Could not retire " + code.getCode()
+                    + " in database!", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final SQLException ignore) {
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Gets the connection to the database, opening it and creating the tables
+     * if they don't exist yet. The connection doesn't auto-commit
+     */
+    private Connection connect() throws StorageException {
+        if (connection != null) {
+            return connection;
+        }
+
+        try {
+            final Connection conn = username.isEmpty() ? DriverManager
+                    .getConnection(url) : DriverManager.getConnection(url,
+                    username, password);
+            try (Statement statement = conn.createStatement()) {
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + CODES
+                        + " (code_key VARCHAR(255) NOT NULL PRIMARY KEY, "
+                        + "code VARCHAR(255) NOT NULL, "
+                        + "command TEXT NOT NULL, amount INTEGER NOT NULL, "
+                        + "remaining INTEGER NOT NULL, "
+                        + "spent INTEGER NOT NULL)");
+
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS "
+                        + REDEMPTIONS + " (code_key VARCHAR(255) NOT NULL, "
+                        + "number INTEGER NOT NULL, "
+                        + "redeemer CHAR(36) NOT NULL, "
+                        + "PRIMARY KEY (code_key, number))");
+
+            }
+            conn.setAutoCommit(false);
+            conn.commit();
+            connection = conn;
+            return conn;
+        } catch (final SQLException e) {
+            throw new StorageException("Could not connect to code database "
+                    + url, e);
+        }
+    }
+
+    /**
+     * Reads the code with the given key and its redeemers, or null if it
+     * isn't stored
+     */
+    private static CommandCode find(final Connection conn, final String key)
+            throws SQLException {
+        final String code;
+        final String command;
+        final int amount;
+        final boolean spent;
+        try (PreparedStatement select = conn.prepareStatement("SELECT code, "
+                + "command, amount, spent FROM " + CODES
+                + " WHERE code_key = ?")) {
+
+            select.setString(1, key);
+            try (ResultSet result = select.executeQuery()) {
+                if (!result.next()) {
+                    return null;
+                }
+                code = result.getString(1);
+                command = result.getString(2);
+                amount = result.getInt(3);
+                spent = result.getInt(4) != 0;
+            }
+        }
+
+        final List<UUID> redeemers = new ArrayList<>();
+        try (PreparedStatement select = conn.prepareStatement("SELECT "
+                + "redeemer FROM " + REDEMPTIONS + " WHERE code_key = ? "
+                + "ORDER BY number")) {
+            select.setString(1, key);
+            try (ResultSet result = select.executeQuery()) {
+                while (result.next()) {
+                    redeemers.add(UUID.fromString(result.getString(1)));
+                }
+            }
+        }
+        return new CommandCode(code, command, amount, redeemers, spent);
+    }
+
+    private static boolean exists(final Connection conn, final String key)
+            throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement("SELECT 1 FROM "
+                + CODES + " WHERE code_key = ?")) {
+            select.setString(1, key);
+            try (ResultSet result = select.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    private static boolean hasRedeemed(final Connection conn, final String key,
+            final UUID redeemer) throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement("SELECT 1 FROM "
+                + REDEMPTIONS + " WHERE code_key = ? AND redeemer = ?")) {
+            select.setString(1, key);
+            select.setString(2, redeemer.toString());
+            try (ResultSet result = select.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows of each of the codes with the given keys and their
+     * redemptions, in batches
+     */
+    private void deleteAll(final Connection conn, final List<String> keys)
+            throws SQLException {
+        try (PreparedStatement codeRows = conn.prepareStatement("DELETE FROM "
+                + CODES + " WHERE code_key = ?");
+                PreparedStatement redemptionRows = conn
+                        .prepareStatement("DELETE FROM " + REDEMPTIONS
+                                + " WHERE code_key = ?")) {
+            int batched = 0;
+            for (final String key : keys) {
+                codeRows.setString(1, key);
+                codeRows.addBatch();
+                redemptionRows.setString(1, key);
+                redemptionRows.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    codeRows.executeBatch();
+                    redemptionRows.executeBatch();
+                }
+            }
+            if (batched % BATCH_SIZE != 0) {
+                codeRows.executeBatch();
+                redemptionRows.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Inserts rows for each of the given codes and their redemptions, in
+     * batches. None of the codes may already be stored
+     */
+    private void insertAll(final Connection conn, final List<CommandCode> codes)
+            throws SQLException {
+        try (PreparedStatement codeRows = conn.prepareStatement("INSERT INTO "
+                + CODES + " (code_key, code, command, amount, remaining, "
+                + "spent) VALUES (?, ?, ?, ?, ?, ?)");
+                PreparedStatement redemptionRows = conn
+                        .prepareStatement("INSERT INTO " + REDEMPTIONS
+                                + " (code_key, number, redeemer) VALUES "
+                                + "(?, ?, ?)")) {
+            int batched = 0;
+            int redemptions = 0;
+            for (final CommandCode code : codes) {
+                final String key = key(code);
+                final List<UUID> redeemers = code.getRedeemers();
+                codeRows.setString(1, key);
+                codeRows.setString(2, code.getCode());
+                codeRows.setString(3, code.getCommand());
+                codeRows.setInt(4, code.getTimesUsable());
+                codeRows.setInt(5, code.getRemainingUses());
+                codeRows.setInt(6, code.isSpent() ? 1 : 0);
+                codeRows.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    codeRows.executeBatch();
+                }
+
+                for (int i = 0; i < redeemers.size(); i++) {
+                    redemptionRows.setString(1, key);
+                    redemptionRows.setInt(2, i + 1);
+                    redemptionRows.setString(3, redeemers.get(i).toString());
+                    redemptionRows.addBatch();
+                    if (++redemptions % BATCH_SIZE == 0) {
+                        redemptionRows.executeBatch();
+                    }
+                }
+            }
+            if (batched % BATCH_SIZE != 0) {
+                codeRows.executeBatch();
+            }
+            if (redemptions % BATCH_SIZE != 0) {
+                redemptionRows.executeBatch();
+            }
+        }
+    }
+
+    private static void rollback(final Connection conn) {
+        try {
+            conn.rollback();
+        } catch (final SQLException ignore) {
+        }
+    }
+
+    private static String key(final CommandCode code) {
+        return code.getCode().toLowerCase(Locale.ENGLISH);
+    }
+}
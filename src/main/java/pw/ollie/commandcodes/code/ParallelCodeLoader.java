@@ -0,0 +1,218 @@
+package pw.ollie.commandcodes.code;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import pw.ollie.commandcodes.storage.BinaryFileHandler;
+import pw.ollie.commandcodes.storage.StorageException;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser;
+
+/**
+ * Loads stored command codes by splitting the code storage file into chunks
+ * and parsing the chunks in parallel on a fork-join pool. The parsed codes are
+ * returned in the order they appear in the file, for the caller to add to the
+ * code tables
+ */
+public final class ParallelCodeLoader {
+    /**
+     * The smallest chunk of a JSON file parsed by a single task
+     */
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    /**
+     * The largest chunk of a JSON file parsed by a single task, which must
+     * fit in a single memory mapping
+     */
+    private static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    /**
+     * The amount of records in each chunk of a binary file
+     */
+    private static final int RECORDS_PER_CHUNK = 4096;
+    /**
+     * The amount of chunks created for each thread in the pool, so that
+     * threads which finish early can take on more work
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The pool chunks are parsed on
+     */
+    private final ForkJoinPool pool;
+
+    public ParallelCodeLoader(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Parses every command code in the given JSON code storage file, which has
+     * one JSON object per line
+     * 
+     * @param file
+     *            The JSON code storage file
+     * @return The parsed codes, in file order
+     * @throws StorageException
+     *             If the file can't be read or a line can't be parsed
+     */
+    public List<CommandCode> loadJSON(final File file) throws StorageException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(
+                    MIN_CHUNK_SIZE, size
+                            / (pool.getParallelism() * CHUNKS_PER_THREAD)));
+
+            final List<Callable<List<CommandCode>>> tasks = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                final long end = nextLineStart(channel,
+                        Math.min(size, start + chunkSize), size);
+                final ByteBuffer chunk = channel.map(MapMode.READ_ONLY, start,
+                        end - start);
+                tasks.add(new Callable<List<CommandCode>>() {
+                    @Override
+                    public List<CommandCode> call() {
+                        return parseJSONChunk(chunk);
+                    }
+                });
+                start = end;
+            }
+            return runAll(tasks);
+        } catch (final IOException e) {
+            throw new StorageException("Could not read code storage file!", e);
+        }
+    }
+
+    /**
+     * Parses every command code in the given binary code storage file. If the
+     * file is too small to be memory mapped, it is simply read on this thread
+     * 
+     * @param file
+     *            The binary code storage file
+     * @return The parsed codes, in file order
+     * @throws StorageException
+     *             If the file can't be read
+     */
+    public List<CommandCode> loadBinary(final BinaryFileHandler file)
+            throws StorageException {
+        final List<CommandCode> codes = new ArrayList<>();
+        final List<Callable<List<CommandCode>>> tasks = new ArrayList<>();
+
+        file.startReading();
+        try {
+            List<ByteBuffer> chunk = new ArrayList<>(RECORDS_PER_CHUNK);
+            ByteBuffer record;
+            while ((record = file.read()) != null) {
+                if (!file.isMapped()) {
+                    codes.add(CommandCode.fromBinary(record));
+                    continue;
+                }
+                // Records from a mapped file are views of the mapping, so
+                // they can be parsed later without copying
+                chunk.add(record);
+                if (chunk.size() == RECORDS_PER_CHUNK) {
+                    tasks.add(binaryTask(chunk));
+                    chunk = new ArrayList<>(RECORDS_PER_CHUNK);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                tasks.add(binaryTask(chunk));
+            }
+        } finally {
+            file.stopReading();
+        }
+
+        if (!tasks.isEmpty()) {
+            codes.addAll(runAll(tasks));
+        }
+        return codes;
+    }
+
+    private static Callable<List<CommandCode>> binaryTask(
+            final List<ByteBuffer> records) {
+        return new Callable<List<CommandCode>>() {
+            @Override
+            public List<CommandCode> call() {
+                final List<CommandCode> codes = new ArrayList<>(records.size());
+                for (final ByteBuffer record : records) {
+                    codes.add(CommandCode.fromBinary(record));
+                }
+                return codes;
+            }
+        };
+    }
+
+    /**
+     * Runs the given tasks on the pool, joining their results in order
+     */
+    private List<CommandCode> runAll(
+            final List<Callable<List<CommandCode>>> tasks)
+            throws StorageException {
+        final List<CommandCode> codes = new ArrayList<>();
+        try {
+            for (final Future<List<CommandCode>> result : pool
+                    .invokeAll(tasks)) {
+
+                codes.addAll(result.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while loading codes!", e);
+        } catch (final ExecutionException e) {
+            throw new StorageException("Could not parse stored codes!",
+                    e.getCause());
+        }
+        return codes;
+    }
+
+    /**
+     * Parses each code in the given chunk of a JSON file straight from the
+     * decoded characters, without splitting it into lines. The chunk is decoded
+     * with the platform charset, as the JSON file is written with a FileWriter
+     */
+    private static List<CommandCode> parseJSONChunk(final ByteBuffer chunk) {
+        final CharBuffer chars = Charset.defaultCharset().decode(chunk);
+        final List<CommandCode> codes = new ArrayList<>();
+
+        final JSONPullParser parser = new JSONPullParser(chars);
+        CommandCode cur;
+        while ((cur = CommandCode.fromJSON(parser)) != null) {
+            codes.add(cur);
+        }
+        return codes;
+    }
+
+    /**
+     * Finds the position just after the first newline at or after the given
+     * position, or the end of the file if there isn't one
+     */
+    private static long nextLineStart(final FileChannel channel,
+            final long from, final long size) throws IOException {
+        final ByteBuffer scan = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size) {
+            scan.clear();
+            final int read = channel.read(scan, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+}
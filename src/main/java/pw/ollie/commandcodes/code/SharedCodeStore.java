@@ -0,0 +1,67 @@
+package pw.ollie.commandcodes.code;
+
+import java.util.UUID;
+
+import pw.ollie.commandcodes.storage.StorageException;
+
+/**
+ * A CodeStore which may be shared by several servers at once, such as a
+ * networked database. The store, rather than any one server's memory, is the
+ * authority on each code, so redemptions are claimed against the store itself
+ * and codes can be fetched from it as they are now
+ */
+public interface SharedCodeStore extends CodeStore {
+    /**
+     * Fetches the current state of the given code from the store
+     * 
+     * @param code
+     *            The code to fetch
+     * @return The stored CommandCode, or null if the code isn't stored
+     * @throws StorageException
+     *             If the store can't be read
+     */
+    CommandCode find(String code) throws StorageException;
+
+    /**
+     * Stores the given newly generated code, unless a code with the same
+     * (case insensitive) value is already stored, possibly by another server
+     * 
+     * @param code
+     *            The CommandCode to store
+     * @return Whether the code was stored, i.e false if it already existed
+     * @throws StorageException
+     *             If the store can't be written
+     */
+    boolean insert(CommandCode code) throws StorageException;
+
+    /**
+     * Atomically claims one of the given code's remaining redemptions in the
+     * store for the given redeemer, recording the redemption if successful.
+     * This succeeds for at most as many claims as the code has uses, however
+     * many servers are claiming at once
+     * 
+     * @param code
+     *            The CommandCode being redeemed
+     * @param redeemer
+     *            The UUID of the player redeeming the code
+     * @param allowRepeat
+     *            Whether the redeemer may redeem the code more than once
+     * @return The number of the claimed redemption, starting from 1, or 0 if
+     *         a redemption couldn't be claimed
+     * @throws StorageException
+     *             If the store can't be read or written
+     */
+    int claim(CommandCode code, UUID redeemer, boolean allowRepeat)
+            throws StorageException;
+
+    /**
+     * Retires the given code in the store so it can't be redeemed again,
+     * deleting it if it has never been redeemed
+     * 
+     * @param code
+     *            The CommandCode to retire
+     * @throws StorageException
+     *             If the store can't be written
+     */
+    void retire(CommandCode code) throws StorageException;
+}
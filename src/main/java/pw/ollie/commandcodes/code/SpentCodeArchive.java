@@ -0,0 +1,222 @@
+package pw.ollie.commandcodes.code;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import pw.ollie.commandcodes.storage.RecordArchive;
+import pw.ollie.commandcodes.storage.StorageException;
+import pw.ollie.commandcodes.util.LongLongHashMap;
+
+/**
+ * Keeps spent CommandCodes on disk rather than in memory, loading each one
+ * only when it is asked for. Spent codes never change, so each is appended to
+ * a RecordArchive once, and only its offset in the archive is kept in memory,
+ * indexed by its code and in the order it was archived
+ */
+final class SpentCodeArchive {
+    /**
+     * The offset returned when a code isn't in the archive
+     */
+    private static final long MISSING = -1L;
+
+    /**
+     * The archive spent codes are stored in
+     */
+    private final RecordArchive archive;
+    /**
+     * The offsets of archived codes which can be packed, keyed by their
+     * packed value in lower case
+     */
+    private final LongLongHashMap packedOffsets;
+    /**
+     * The offsets of archived codes which can't be packed, keyed by their
+     * lower case code
+     */
+    private final Map<String, Long> otherOffsets;
+    /**
+     * The offsets of every archived code, in the order they were archived
+     */
+    private long[] offsets;
+    /**
+     * The amount of archived codes
+     */
+    private int size;
+
+    SpentCodeArchive(final RecordArchive archive) {
+        this.archive = archive;
+        packedOffsets = new LongLongHashMap();
+        otherOffsets = new HashMap<>();
+        offsets = new long[16];
+    }
+
+    /**
+     * Opens the archive, indexing every code already in it and marking each as
+     * issued in the given set
+     * 
+     * @param issued
+     *            The set of issued codes to add archived codes to
+     * @throws StorageException
+     *             If the archive can't be opened or read
+     */
+    synchronized void open(final IssuedCodes issued) throws StorageException {
+        archive.open(new RecordArchive.RecordVisitor() {
+            @Override
+            public void visit(final long offset, final ByteBuffer record) {
+                final String code = CommandCode.codeOf(record);
+                if (offsetOf(code) == MISSING) {
+                    index(code, offset);
+                    synchronized (issued) {
+                        issued.add(code);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether the given code has been archived
+     * 
+     * @param code
+     *            The code to check for
+     * @return Whether the code is in the archive
+     */
+    synchronized boolean contains(final String code) {
+        return offsetOf(code) != MISSING;
+    }
+
+    /**
+     * Gets the amount of codes in the archive
+     * 
+     * @return The amount of archived codes
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Appends the given spent CommandCode to the archive, unless it has
+     * already been archived
+     * 
+     * @param code
+     *            The CommandCode to archive
+     * @throws StorageException
+     *             If the code can't be written to the archive
+     */
+    synchronized void add(final CommandCode code) throws StorageException {
+        if (offsetOf(code.getCode()) == MISSING) {
+            index(code.getCode(), archive.append(code.toBinary()));
+        }
+    }
+
+    /**
+     * Reads the archived CommandCode with the given code from disk
+     * 
+     * @param code
+     *            The code to get the CommandCode for
+     * @return The archived CommandCode, or null if the code isn't archived
+     * @throws StorageException
+     *             If the code can't be read from the archive
+     */
+    synchronized CommandCode get(final String code) throws StorageException {
+        final long offset = offsetOf(code);
+        return offset == MISSING ? null : CommandCode.fromBinary(archive
+                .read(offset));
+    }
+
+    /**
+     * Reads the CommandCode archived at the given position, in the order codes
+     * were archived
+     * 
+     * @param position
+     *            The position of the code in the archive
+     * @return The archived CommandCode
+     * @throws StorageException
+     *             If the code can't be read from the archive
+     */
+    synchronized CommandCode get(final int position) throws StorageException {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position: " + position
+                    + ", Size: " + size);
+        }
+        return CommandCode.fromBinary(archive.read(offsets[position]));
+    }
+
+    /**
+     * Gets a list of the codes archived so far followed by the given codes,
+     * which reads each archived code from disk only when it is asked for. The
+     * list doesn't include codes archived after it is created
+     * 
+     * @param resident
+     *            Spent codes which are in memory rather than in the archive
+     * @return An unmodifiable list of archived codes
+     */
+    List<CommandCode> view(final List<CommandCode> resident) {
+        final int archived = size();
+        return new AbstractList<CommandCode>() {
+            @Override
+            public CommandCode get(final int index) {
+                if (index >= archived) {
+                    return resident.get(index - archived);
+                }
+                try {
+                    return SpentCodeArchive.this.get(index);
+                } catch (final StorageException e) {
+                    throw new IllegalStateException(
+                            "Could not read spent code from the archive!", e);
+                }
+            }
+
+            @Override
+            public int size() {
+                return archived + resident.size();
+            }
+        };
+    }
+
+    /**
+     * Forces every archived code to disk
+     * 
+     * @throws StorageException
+     *             If the archive can't be forced to disk
+     */
+    void force() throws StorageException {
+        archive.force();
+    }
+
+    /**
+     * Closes the archive
+     */
+    void close() {
+        archive.close();
+    }
+
+    private long offsetOf(final String code) {
+        final String key = code.toLowerCase(Locale.ENGLISH);
+        final long packed = IssuedCodes.pack(key);
+        if (packed != IssuedCodes.NOT_PACKABLE) {
+            return packedOffsets.get(packed, MISSING);
+        }
+        final Long offset = otherOffsets.get(key);
+        return offset == null ? MISSING : offset;
+    }
+
+    private void index(final String code, final long offset) {
+        final String key = code.toLowerCase(Locale.ENGLISH);
+        final long packed = IssuedCodes.pack(key);
+        if (packed != IssuedCodes.NOT_PACKABLE) {
+            packedOffsets.put(packed, offset);
+        } else {
+            otherOffsets.put(key, offset);
+        }
+
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = offset;
+    }
+}
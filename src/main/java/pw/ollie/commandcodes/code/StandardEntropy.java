@@ -0,0 +1,90 @@
+package pw.ollie.commandcodes.code;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built in sources of randomness for picking command codes. Both keep
+ * their state per thread, so codes can be generated on several threads
+ * without contending over a single shared seed
+ */
+public enum StandardEntropy implements CodeEntropy {
+    /**
+     * Fast, but predictable, randomness from ThreadLocalRandom
+     */
+    FAST {
+        @Override
+        public long nextLong() {
+            return ThreadLocalRandom.current().nextLong();
+        }
+
+        @Override
+        public long nextLong(final long bound) {
+            return ThreadLocalRandom.current().nextLong(bound);
+        }
+    },
+    /**
+     * Cryptographically strong randomness from a SecureRandom for each thread,
+     * for codes which shouldn't be guessable
+     */
+    SECURE {
+        @Override
+        public long nextLong() {
+            return SECURE_RANDOMS.get().nextLong();
+        }
+
+        @Override
+        public long nextLong(final long bound) {
+            if (bound <= 0) {
+                throw new IllegalArgumentException("bound must be positive");
+            }
+
+            final SecureRandom random = SECURE_RANDOMS.get();
+            final long max = bound - 1;
+            long raw = random.nextLong() >>> 1;
+            long value = raw % bound;
+            // Reject values from the incomplete range at the top, which would
+            // otherwise make lower results slightly more likely. The sum only
+            // overflows for those values
+            while (raw - value + max < 0) {
+                raw = random.nextLong() >>> 1;
+                value = raw % bound;
+            }
+            return value;
+        }
+    };
+
+    /**
+     * A SecureRandom for each thread
+     */
+    private static final ThreadLocal<SecureRandom> SECURE_RANDOMS =
+            new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    /**
+     * Gets the StandardEntropy with the given name, ignoring case
+     * 
+     * @param name
+     *            The name of the StandardEntropy
+     * @param def
+     *            The StandardEntropy to return if there isn't one with the
+     *            given name
+     * @return The StandardEntropy with the given name, or def
+     */
+    public static StandardEntropy fromName(final String name,
+            final StandardEntropy def) {
+        if (name == null) {
+            return def;
+        }
+        try {
+            return valueOf(name.toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            return def;
+        }
+    }
+}
@@ -46,12 +46,19 @@ public final class CCodeCommand implements CommandExecutor {
             final CCodeSubCommand command = subCommands.get(args[0]);
 
             if (command != null) {
-                if (sender.hasPermission(command.getPermission())
-                        || sender instanceof ConsoleCommandSender) {
-                    command.execute(sender, args);
-                } else {
+                if (!sender.hasPermission(command.getPermission())
+                        && !(sender instanceof ConsoleCommandSender)) {
                     sender.sendMessage(ChatColor.DARK_RED
                             + "You don't have permission to do that!");
+                } else if (plugin.hasFailedToLoad()) {
+                    sender.sendMessage(ChatColor.DARK_RED + "Codes couldn't be"
+                            + " loaded, check the console for details!");
+                } else if (!plugin.isReady()) {
+                    // Codes are still being loaded in the background
+                    sender.sendMessage(ChatColor.GRAY + "Codes are still being"
+                            + " loaded, please try again in a moment!");
+                } else {
+                    command.execute(sender, args);
                 }
             } else {
                 sender.sendMessage(ChatColor.DARK_RED
@@ -1,5 +1,15 @@
 package pw.ollie.commandcodes.command.ccode;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
 import pw.ollie.commandcodes.CommandCodes;
 import pw.ollie.commandcodes.code.CodeManager;
 import pw.ollie.commandcodes.code.CommandCode;
@@ -7,6 +17,7 @@ import pw.ollie.commandcodes.command.CCodeSubCommand;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitScheduler;
 
 /**
  * The subcommand of the 'ccode' command which deals with generation of new
@@ -17,11 +28,18 @@ public final class CCodeGenerateCommand extends CCodeSubCommand {
      * The plugin's code manager
      */
     private final CodeManager codeMgr;
+    /**
+     * The maximum amount of codes which will be sent in chat, above which
+     * generated codes are written to a file instead
+     */
+    private final int chatLimit;
 
     public CCodeGenerateCommand(final CommandCodes plugin) {
         super(plugin);
 
         codeMgr = plugin.getCodeManager();
+        chatLimit = plugin.getFileManager().getConfig()
+                .getInt("generate-chat-limit", 10);
     }
 
     /**
@@ -30,8 +48,8 @@ public final class CCodeGenerateCommand extends CCodeSubCommand {
     @Override
     public void execute(final CommandSender sender, final String[] args) {
         if (args.length < 4) {
-            sender.sendMessage(ChatColor.DARK_RED
-                    + "Invalid syntax, /ccode generate <amount> <timesUsable> <command>");
+            sender.sendMessage(ChatColor.DARK_RED + "Invalid syntax, "
+                    + "/ccode generate <amount> <timesUsable> <command>");
         } else {
             boolean invalid = false;
             int amount = -1;
@@ -49,8 +67,8 @@ public final class CCodeGenerateCommand extends CCodeSubCommand {
             }
 
             if (invalid) {
-                sender.sendMessage(ChatColor.DARK_RED
-                        + "Invalid arguments (amount and times usable must be at least 1!)");
+                sender.sendMessage(ChatColor.DARK_RED + "Invalid arguments "
+                        + "(amount and times usable must be at least 1!)");
             } else {
                 final StringBuilder builder = new StringBuilder();
                 for (int cur = 3; cur < args.length; cur++) {
@@ -59,19 +77,131 @@ public final class CCodeGenerateCommand extends CCodeSubCommand {
                 builder.setLength(builder.length() - 1);
                 final String command = builder.toString();
 
-                final CommandCode[] codes = new CommandCode[amount];
-                for (int i = 0; i < codes.length; i++) {
-                    codes[i] = codeMgr.generateCode(command, timesUsable);
+                if (amount > chatLimit) {
+                    sender.sendMessage(ChatColor.GRAY + "Generating " + amount
+                            + " codes...");
                 }
 
-                sender.sendMessage(ChatColor.GOLD
-                        + "Codes created for command: '" + command + "'");
-                for (final CommandCode code : codes) {
-                    sender.sendMessage(ChatColor.GRAY + "Code: "
-                            + code.getCode() + ", Usable: "
-                            + code.getTimesUsable() + " times");
+                codeMgr.generateCodes(command, timesUsable, amount)
+                        .whenComplete(reporter(sender, command));
+            }
+        }
+    }
+
+    /**
+     * Creates the callback which tells the given sender about a batch of
+     * generated codes, or why it couldn't be generated. It is called on the
+     * main thread
+     * 
+     * @param sender
+     *            The CommandSender who generated the codes
+     * @param command
+     *            The command the codes were generated for
+     * @return The callback for the batch's future
+     */
+    private BiConsumer<List<CommandCode>, Throwable> reporter(
+            final CommandSender sender, final String command) {
+        return new BiConsumer<List<CommandCode>, Throwable>() {
+            @Override
+            public void accept(final List<CommandCode> codes,
+                    final Throwable error) {
+                if (error != null) {
+                    sender.sendMessage(ChatColor.DARK_RED
+                            + "Couldn't generate codes: " + error.getMessage());
+                } else if (codes.size() > chatLimit) {
+                    writeCodes(sender, command, codes);
+                } else {
+                    sendCodes(sender, command, codes);
                 }
             }
+        };
+    }
+
+    /**
+     * Sends the given generated codes to the given sender in chat
+     * 
+     * @param sender
+     *            The CommandSender who generated the codes
+     * @param command
+     *            The command the codes were generated for
+     * @param codes
+     *            The generated codes
+     */
+    private void sendCodes(final CommandSender sender, final String command,
+            final List<CommandCode> codes) {
+        sender.sendMessage(ChatColor.GOLD + "Codes created for command: '"
+                + command + "'");
+        for (final CommandCode code : codes) {
+            sender.sendMessage(ChatColor.GRAY + "Code: " + code.getCode()
+                    + ", Usable: " + code.getTimesUsable() + " times");
+        }
+    }
+
+    /**
+     * Asynchronously writes the given generated codes to a new file in the
+     * plugin's 'generated' folder, one code per line, and tells the given
+     * sender where they were written once done
+     * 
+     * @param sender
+     *            The CommandSender who generated the codes
+     * @param command
+     *            The command the codes were generated for
+     * @param codes
+     *            The generated codes
+     */
+    private void writeCodes(final CommandSender sender, final String command,
+            final List<CommandCode> codes) {
+        final File folder = plugin.getFileManager().getFile("generated");
+        final File file = new File(folder, new SimpleDateFormat(
+                "yyyy-MM-dd_HH-mm-ss-SSS").format(new Date()) + ".txt");
+
+        final BukkitScheduler scheduler = plugin.getServer().getScheduler();
+        scheduler.runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                folder.mkdirs();
+                final String message = writeCodeFile(file, command, codes);
+                scheduler.runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        sender.sendMessage(message);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the given generated codes to the given file, one code per line
+     * after a line giving their command. This blocks, so it is called off the
+     * main thread
+     * 
+     * @param file
+     *            The file to write the codes to
+     * @param command
+     *            The command the codes were generated for
+     * @param codes
+     *            The generated codes
+     * @return The message to send to the CommandSender who generated the codes
+     */
+    private String writeCodeFile(final File file, final String command,
+            final List<CommandCode> codes) {
+        try (final BufferedWriter writer = new BufferedWriter(new FileWriter(
+                file))) {
+            writer.write("# " + command);
+            writer.newLine();
+            for (final CommandCode code : codes) {
+                writer.write(code.getCode());
+                writer.newLine();
+            }
+            return ChatColor.GOLD.toString() + codes.size()
+                    + " codes created for command: '" + command
+                    + "', written to " + file.getPath();
+        } catch (final IOException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    "Could not write generated codes to file!", e);
+            return ChatColor.DARK_RED + "" + codes.size() + " codes were "
+                    + "created, but couldn't be written to a file!";
         }
     }
 
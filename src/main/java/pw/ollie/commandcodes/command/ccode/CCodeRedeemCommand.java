@@ -8,6 +8,7 @@ import pw.ollie.commandcodes.command.CCodeSubCommand;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitScheduler;
 
 public final class CCodeRedeemCommand extends CCodeSubCommand {
     /**
@@ -37,17 +38,43 @@ public final class CCodeRedeemCommand extends CCodeSubCommand {
                 final String code = args[1];
                 final Player player = (Player) sender;
 
-                // Redeems the code with the CodeManager
-                final CommandCode cc = codeMgr.redeemCode(player.getUniqueId(), code);
-                if (cc == null) { // If they have already redeemed it
-                    sender.sendMessage(ChatColor.DARK_RED + "Couldn't redeem command code!");
-                } else {
-                    sender.sendMessage(ChatColor.GRAY + "Redeemed code!");
+                if (!codeMgr.isStoreBlocking()) {
+                    // Redeems the code with the CodeManager
+                    sendResult(sender, codeMgr.redeemCode(
+                            player.getUniqueId(), code));
+                    return;
                 }
+
+                // Redeeming against a shared or incremental store waits on
+                // the database, so it is done off the main thread
+                final BukkitScheduler scheduler = plugin.getServer()
+                        .getScheduler();
+                scheduler.runTaskAsynchronously(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        final CommandCode cc = codeMgr.redeemCode(
+                                player.getUniqueId(), code);
+                        scheduler.runTask(plugin, new Runnable() {
+                            @Override
+                            public void run() {
+                                sendResult(sender, cc);
+                            }
+                        });
+                    }
+                });
             }
         }
     }
 
+    private void sendResult(final CommandSender sender, final CommandCode cc) {
+        if (cc == null) { // If they have already redeemed it
+            sender.sendMessage(ChatColor.DARK_RED
+                    + "Couldn't redeem command code!");
+        } else {
+            sender.sendMessage(ChatColor.GRAY + "Redeemed code!");
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
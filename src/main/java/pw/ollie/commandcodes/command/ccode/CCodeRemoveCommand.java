@@ -7,6 +7,7 @@ import pw.ollie.commandcodes.command.CCodeSubCommand;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitScheduler;
 
 public final class CCodeRemoveCommand extends CCodeSubCommand {
     /**
@@ -30,20 +31,47 @@ public final class CCodeRemoveCommand extends CCodeSubCommand {
                     + "Invalid syntax, /ccode remove <code>");
         } else {
             final String code = args[1];
-            final CommandCode cc = codeMgr.getCurrentCommandCode(code);
 
-            if (cc == null) {
-                sender.sendMessage(ChatColor.DARK_RED
-                        + "A command code with that code doesn't exist!");
-            } else {
-                if (codeMgr.removeCommandCode(cc)) {
-                    sender.sendMessage(ChatColor.GRAY
-                            + "Successfully removed command code!");
-                } else {
-                    sender.sendMessage(ChatColor.GRAY
-                            + "Couldn't remove command code!");
-                }
+            if (!codeMgr.isStoreBlocking()) {
+                sender.sendMessage(remove(code));
+                return;
             }
+
+            // Looking up and removing a code in a shared or incremental store
+            // waits on the database, so it is done off the main thread
+            final BukkitScheduler scheduler = plugin.getServer()
+                    .getScheduler();
+            scheduler.runTaskAsynchronously(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    final String message = remove(code);
+                    scheduler.runTask(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            sender.sendMessage(message);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the given code, if it is a current code
+     * 
+     * @param code
+     *            The code to remove
+     * @return The message to send to the sender
+     */
+    private String remove(final String code) {
+        final CommandCode cc = codeMgr.getCurrentCommandCode(code);
+        if (cc == null) {
+            return ChatColor.DARK_RED
+                    + "A command code with that code doesn't exist!";
+        } else if (codeMgr.removeCommandCode(cc)) {
+            return ChatColor.GRAY + "Successfully removed command code!";
+        } else {
+            return ChatColor.GRAY + "Couldn't remove command code!";
         }
     }
 
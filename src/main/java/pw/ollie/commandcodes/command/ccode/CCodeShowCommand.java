@@ -8,6 +8,7 @@ import pw.ollie.commandcodes.util.CommandUtil;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitScheduler;
 
 public final class CCodeShowCommand extends CCodeSubCommand {
     /**
@@ -32,20 +33,54 @@ public final class CCodeShowCommand extends CCodeSubCommand {
         } else {
             final String code = args[1];
 
-            CommandCode cc = codeMgr.getCurrentCommandCode(code);
-            if (cc == null) {
-                cc = codeMgr.getSpentCommandCode(code);
+            if (!codeMgr.isStoreBlocking()) {
+                show(sender, find(code));
+                return;
             }
 
-            if (cc == null) {
-                sender.sendMessage(ChatColor.DARK_RED + "That code doesn't exist!");
-            } else {
-                sender.sendMessage(ChatColor.GOLD + "Code: " + cc.getCode());
-                sender.sendMessage(ChatColor.GOLD + "Command: " + cc.getCommand());
-                sender.sendMessage(ChatColor.GOLD + "Uses: " + cc.getTimesUsable());
-                sender.sendMessage(ChatColor.GOLD + "Remaining: " + (cc.getTimesUsable() - cc.getRedeemers().size()));
-                sender.sendMessage(ChatColor.GOLD + "Redeemers: " + CommandUtil.getPlayersStr(cc.getRedeemers()));
-            }
+            // Looking a code up in a shared store may fetch it from the
+            // database, so it is done off the main thread
+            final BukkitScheduler scheduler = plugin.getServer()
+                    .getScheduler();
+            scheduler.runTaskAsynchronously(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    final CommandCode cc = find(code);
+                    scheduler.runTask(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            show(sender, cc);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds the given current or spent code
+     * 
+     * @param code
+     *            The code to find
+     * @return The CommandCode with the given code, or null if there isn't one
+     */
+    private CommandCode find(final String code) {
+        final CommandCode cc = codeMgr.getCurrentCommandCode(code);
+        return cc != null ? cc : codeMgr.getSpentCommandCode(code);
+    }
+
+    private void show(final CommandSender sender, final CommandCode cc) {
+        if (cc == null) {
+            sender.sendMessage(ChatColor.DARK_RED + "That code doesn't exist!");
+        } else {
+            sender.sendMessage(ChatColor.GOLD + "Code: " + cc.getCode());
+            sender.sendMessage(ChatColor.GOLD + "Command: " + cc.getCommand());
+            sender.sendMessage(ChatColor.GOLD + "Uses: "
+                    + cc.getTimesUsable());
+            sender.sendMessage(ChatColor.GOLD + "Remaining: "
+                    + cc.getRemainingUses());
+            sender.sendMessage(ChatColor.GOLD + "Redeemers: "
+                    + CommandUtil.getPlayersStr(cc.getRedeemers()));
         }
     }
 
@@ -0,0 +1,349 @@
+package pw.ollie.commandcodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A utility for storing length-prefixed binary records in a File, read and
+ * written through NIO ByteBuffers. Files start with a magic number and format
+ * version, and each record is an int length followed by that many bytes.
+ * Writing always goes to a temporary file which atomically replaces the file
+ * once writing is stopped. Large files are read by memory mapping them, so
+ * records are parsed straight out of the page cache without being copied
+ */
+public final class BinaryFileHandler {
+    /**
+     * The magic number at the start of every binary code file ("CCBN")
+     */
+    private static final int MAGIC = 0x4343424E;
+    /**
+     * The version of the binary format
+     */
+    private static final int VERSION = 1;
+    /**
+     * The size of the buffer used for reading and writing
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The size from which files are memory mapped for reading
+     */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    /**
+     * The size of each region of a file which is mapped at once. A mapping
+     * can't be larger than Integer.MAX_VALUE bytes, so larger files are mapped
+     * a region at a time
+     */
+    private static final long MAP_WINDOW = 256 * 1024 * 1024;
+
+    /**
+     * The File we are writing to and/or reading from
+     */
+    private final File file;
+
+    /**
+     * The channel in use, for either reading or writing
+     */
+    private FileChannel channel;
+    /**
+     * The buffer records are read into or written from
+     */
+    private ByteBuffer buffer;
+    /**
+     * The temporary file being written to, if writing
+     */
+    private File tempFile;
+    /**
+     * Whether the file is being read through a memory mapping, in which case
+     * buffer is the currently mapped region
+     */
+    private boolean mapped;
+    /**
+     * The position in the file of the start of the mapped region
+     */
+    private long mapStart;
+    /**
+     * The size of the file being read, if memory mapped
+     */
+    private long mapFileSize;
+
+    /**
+     * Creates a new BinaryFileHandler with the given File
+     * 
+     * @param file
+     *            The File to write to / read from
+     */
+    public BinaryFileHandler(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the File this BinaryFileHandler is currently handling
+     * 
+     * @return This BinaryFileHandler's file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Checks whether the file exists and holds any data
+     * 
+     * @return Whether there is anything in the file
+     */
+    public boolean hasData() {
+        return file.exists() && file.length() > 0;
+    }
+
+    /**
+     * Gets ready to write to a temporary file next to the file
+     * 
+     * @throws StorageException
+     *             If the temporary file can't be opened
+     */
+    public void startWriting() throws StorageException {
+        close();
+        tempFile = new File(file.getPath() + ".tmp");
+        try {
+            channel = FileChannel.open(tempFile.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (final IOException e) {
+            tempFile = null;
+            throw new StorageException("Could not start writing to temp file!",
+                    e);
+        }
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION);
+    }
+
+    /**
+     * Writes the given record to the file, prefixed with its length
+     * 
+     * @param record
+     *            The record to write, from its position to its limit
+     * @throws StorageException
+     *             If the record can't be written
+     */
+    public void write(final ByteBuffer record) throws StorageException {
+        if (tempFile == null) {
+            throw new IllegalStateException(
+                    "Cannot write before starting writing!");
+        }
+        try {
+            final int length = record.remaining();
+            if (buffer.remaining() < 4 + length) {
+                drain();
+            }
+            buffer.putInt(length);
+            if (buffer.remaining() < length) {
+                // Too large to buffer, so write it straight to the channel
+                drain();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } else {
+                buffer.put(record);
+            }
+        } catch (final IOException e) {
+            throw new StorageException("Could not write record to file!", e);
+        }
+    }
+
+    /**
+     * Finishes writing, forcing the temporary file to disk and then renaming
+     * it over the file
+     * 
+     * @throws StorageException
+     *             If the file can't be written or replaced
+     */
+    public void stopWriting() throws StorageException {
+        try {
+            drain();
+            channel.force(true);
+            channel.close();
+            channel = null;
+            FileHandler.replace(tempFile, file);
+        } catch (final IOException e) {
+            abortWriting();
+            throw new StorageException("Could not finish writing file!", e);
+        }
+        tempFile = null;
+        buffer = null;
+    }
+
+    /**
+     * Stops writing without keeping anything written, leaving the file
+     * untouched
+     */
+    public void abortWriting() {
+        close();
+    }
+
+    /**
+     * Gets ready to read from the file, memory mapping it if it is large
+     * 
+     * @throws StorageException
+     *             If the file can't be opened, or isn't a binary code file
+     */
+    public void startReading() throws StorageException {
+        close();
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            mapFileSize = channel.size();
+            if (mapFileSize >= MAP_THRESHOLD) {
+                mapped = true;
+                mapStart = 0;
+                buffer = channel.map(MapMode.READ_ONLY, 0,
+                        Math.min(mapFileSize, MAP_WINDOW));
+            } else {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.flip();
+            }
+            if (!fill(8) || buffer.getInt() != MAGIC) {
+                throw new StorageException("Not a binary code file: "
+                        + file.getPath());
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new StorageException(
+                        "Unsupported binary code file version: " + version);
+            }
+        } catch (final IOException e) {
+            close();
+            throw new StorageException("Could not start reading from file!", e);
+        } catch (final StorageException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether the file is being read through a memory mapping, in which
+     * case buffers returned by read remain valid after later reads
+     * 
+     * @return Whether the file being read is memory mapped
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Reads the next record from the file. The returned buffer is only valid
+     * until the next call to read, unless the file is memory mapped, in which
+     * case the returned buffer is a view of the mapping rather than a copy
+     * 
+     * @return A buffer holding the next record, or null if there are no more
+     * @throws StorageException
+     *             If the record can't be read, or the file ends part way
+     *             through it
+     */
+    public ByteBuffer read() throws StorageException {
+        try {
+            if (!fill(4)) {
+                return null;
+            }
+            final int length = buffer.getInt();
+            if (length < 0) {
+                throw new StorageException("Corrupt record length: " + length);
+            }
+            // A corrupt length could be anything, so the buffer is only grown
+            // for a record the rest of the file can hold
+            if (!mapped && length > buffer.remaining() + channel.size()
+                    - channel.position()) {
+                throw new StorageException("Corrupt record length: " + length
+                        + " is more than the rest of the file");
+            }
+            if (!mapped && length > buffer.capacity()) {
+                final ByteBuffer larger = ByteBuffer.allocateDirect(length);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            if (!fill(length)) {
+                throw new StorageException(
+                        "File ended part way through a record!");
+            }
+
+            final ByteBuffer record = buffer.slice();
+            record.limit(length);
+            buffer.position(buffer.position() + length);
+            return record;
+        } catch (final IOException e) {
+            throw new StorageException("Could not read record from file!", e);
+        }
+    }
+
+    /**
+     * Stops reading from the file
+     */
+    public void stopReading() {
+        close();
+    }
+
+    /**
+     * Makes sure at least the given amount of bytes are available to read
+     * from the buffer, reading more from the channel as needed
+     * 
+     * @return Whether enough bytes were available before the end of the file
+     */
+    private boolean fill(final int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        if (mapped) {
+            // Map the next region, starting from the current position
+            final long position = mapStart + buffer.position();
+            if (position + needed > mapFileSize) {
+                return false;
+            }
+            mapStart = position;
+            buffer = channel.map(MapMode.READ_ONLY, position, Math.min(
+                    mapFileSize - position, Math.max(MAP_WINDOW, needed)));
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Writes everything buffered so far to the channel
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Closes the channel and deletes any temporary file
+     */
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ignore) {
+            }
+            channel = null;
+        }
+        if (tempFile != null) {
+            tempFile.delete();
+            tempFile = null;
+        }
+        // Mapped regions are released once they are garbage collected
+        buffer = null;
+        mapped = false;
+    }
+}
@@ -0,0 +1,294 @@
+package pw.ollie.commandcodes.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import pw.ollie.commandcodes.storage.org.json.JSONException;
+import pw.ollie.commandcodes.storage.org.json.JSONObject;
+
+/**
+ * An append-only journal of changes made to command codes since the code
+ * storage file was last written, stored as one JSON object per line. When the
+ * code storage file is rewritten, the journal is first rotated aside, and the
+ * rotated journal is only deleted once the new code storage file has been
+ * written, so that a crash at any point can be recovered from by replaying
+ * the rotated journal and then the current journal on top of the code storage
+ * file. Replaying a change which is already in the code storage file must
+ * therefore have no effect
+ */
+public final class CodeJournal {
+    /**
+     * The file changes are currently appended to
+     */
+    private final JSONFileHandler current;
+    /**
+     * The journal file rotated aside while the code storage file is rewritten
+     */
+    private final JSONFileHandler rotated;
+    /**
+     * The handler currently being read from, if reading
+     */
+    private JSONFileHandler reading;
+    /**
+     * The number of the last line read from the file being read
+     */
+    private long line;
+
+    /**
+     * Creates a new CodeJournal using the given file, and a file with the same
+     * name + ".old" for the rotated journal
+     * 
+     * @param file
+     *            The file to append changes to
+     */
+    public CodeJournal(final File file) {
+        current = new JSONFileHandler(file);
+        rotated = new JSONFileHandler(new File(file.getPath() + ".old"));
+    }
+
+    /**
+     * Appends the given record to the journal, flushing it to the file
+     * straight away
+     * 
+     * @param record
+     *            The record to append
+     * @throws StorageException
+     *             If the record can't be written
+     */
+    public synchronized void append(final JSONObject record)
+            throws StorageException {
+        if (!current.isWriting()) {
+            startAppending();
+        }
+        current.write(record);
+        current.flush();
+    }
+
+    /**
+     * Appends all of the given records to the journal, flushing them to the
+     * file once they have all been written
+     * 
+     * @param records
+     *            The records to append
+     * @throws StorageException
+     *             If the records can't be written
+     */
+    public synchronized void appendAll(final List<JSONObject> records)
+            throws StorageException {
+        if (!current.isWriting()) {
+            startAppending();
+        }
+        for (final JSONObject record : records) {
+            current.write(record);
+        }
+        current.flush();
+    }
+
+    /**
+     * Opens the current journal for appending, first ending its last line if
+     * a crash left it unfinished, so that every record starts on a line of
+     * its own
+     * 
+     * @throws StorageException
+     *             If the journal can't be opened
+     */
+    private void startAppending() throws StorageException {
+        final File file = current.getFile();
+        if (file.length() > 0) {
+            try (final RandomAccessFile raf = new RandomAccessFile(file,
+                    "rw")) {
+                raf.seek(raf.length() - 1);
+                if (raf.read() != '\n') {
+                    raf.write('\n');
+                }
+            } catch (final IOException e) {
+                throw new StorageException("Could not open journal!", e);
+            }
+        }
+        current.startAppending();
+    }
+
+    /**
+     * Moves the current journal aside, so that new changes are appended to an
+     * empty journal while the code storage file is rewritten. If a rotated
+     * journal is left over from an unfinished rewrite, the current journal is
+     * added to the end of it instead
+     * 
+     * @throws StorageException
+     *             If the journal can't be rotated
+     */
+    public synchronized void rotate() throws StorageException {
+        if (current.isWriting()) {
+            current.stopWriting();
+        }
+
+        final File file = current.getFile();
+        final File old = rotated.getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            if (old.exists()) {
+                try (final OutputStream out = new FileOutputStream(old, true)) {
+                    Files.copy(file.toPath(), out);
+                }
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), old.toPath());
+            }
+        } catch (final IOException e) {
+            throw new StorageException("Could not rotate journal!", e);
+        }
+    }
+
+    /**
+     * Deletes the rotated journal, once the code storage file containing its
+     * changes has been written
+     * 
+     * @throws StorageException
+     *             If the rotated journal can't be deleted
+     */
+    public synchronized void discardRotated() throws StorageException {
+        if (rotated.getFile().exists()) {
+            rotated.delete();
+        }
+    }
+
+    /**
+     * Gets ready to read the rotated journal followed by the current journal
+     * 
+     * @throws StorageException
+     *             If the journal can't be read
+     */
+    public synchronized void startReading() throws StorageException {
+        reading = null;
+        if (rotated.getFile().exists()) {
+            reading = rotated;
+        } else if (current.getFile().exists()) {
+            reading = current;
+        }
+        if (reading != null) {
+            reading.startReading();
+        }
+        line = 0;
+    }
+
+    /**
+     * Reads the next record from the journal. A record which can't be parsed
+     * is only skipped if it is the last in its file, as it was then most
+     * likely cut short by a crash, and the journal can't be trusted otherwise.
+     * A skipped record is cut off the end of its file once it has been read,
+     * so records appended later don't run on from it
+     * 
+     * @return The next record, or null if there are no more
+     * @throws StorageException
+     *             If a record can't be read, or one which isn't the last in
+     *             its file can't be parsed
+     */
+    public synchronized JSONObject read() throws StorageException {
+        while (reading != null) {
+            JSONObject record;
+            boolean torn = false;
+            try {
+                line++;
+                record = reading.read();
+            } catch (final StorageException e) {
+                if (!(e.getCause() instanceof JSONException)
+                        || !reading.isAtEnd()) {
+                    throw new StorageException("Could not read line " + line
+                            + " of journal " + reading.getFile().getName(), e);
+                }
+                // A record only partly written before a crash is the last one
+                // in its file, so treat it as the end of the file
+                record = null;
+                torn = true;
+            }
+            if (record != null) {
+                return record;
+            }
+
+            reading.stopReading();
+            if (torn) {
+                truncateTornRecord(reading.getFile());
+            }
+            if (reading == rotated && current.getFile().exists()) {
+                reading = current;
+                reading.startReading();
+                line = 0;
+            } else {
+                reading = null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cuts the torn record at the end of the given journal file off, along
+     * with anything after it, leaving the file ending after the last complete
+     * record. Records never contain line breaks, so the torn record starts
+     * after the last line break before the end of the file's content
+     * 
+     * @param file
+     *            The journal file ending with a torn record
+     * @throws StorageException
+     *             If the file can't be truncated
+     */
+    private static void truncateTornRecord(final File file)
+            throws StorageException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = raf.length();
+            // Skip the blank lines after the torn record
+            while (pos > 0) {
+                raf.seek(pos - 1);
+                final int c = raf.read();
+                if (c != '\n' && c != '\r' && c != ' ' && c != '\t') {
+                    break;
+                }
+                pos--;
+            }
+            // Then the torn record itself
+            while (pos > 0) {
+                raf.seek(pos - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                pos--;
+            }
+            raf.setLength(pos);
+        } catch (final IOException e) {
+            throw new StorageException("Could not truncate the torn record"
+                    + " at the end of " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Stops reading the journal
+     * 
+     * @throws StorageException
+     *             If the file being read can't be closed
+     */
+    public synchronized void stopReading() throws StorageException {
+        if (reading != null) {
+            reading.stopReading();
+            reading = null;
+        }
+    }
+
+    /**
+     * Closes the journal file, if it is open
+     * 
+     * @throws StorageException
+     *             If the journal can't be flushed or closed
+     */
+    public synchronized void close() throws StorageException {
+        if (current.isWriting()) {
+            current.stopWriting();
+        }
+    }
+}
@@ -3,9 +3,16 @@ package pw.ollie.commandcodes.storage;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 import com.google.common.io.Files;
 
@@ -27,6 +34,15 @@ public abstract class FileHandler {
      * The current backup path
      */
     protected String backupPath;
+    /**
+     * The temporary file being written to, if writing atomically
+     */
+    protected File tempFile;
+    /**
+     * The channel of the temporary file, or of the file if appending, used to
+     * force what is written to disk
+     */
+    protected FileChannel tempChannel;
 
     protected FileHandler(final File file) {
         this.file = file;
@@ -61,9 +77,121 @@ public abstract class FileHandler {
         }
     }
 
+    /**
+     * Gets ready to write to a temporary file next to the file, which replaces
+     * the file in a single atomic rename when writing is stopped, after being
+     * forced to disk. If writing fails part way through, or the server crashes,
+     * the file is left untouched, so no backup of it is needed
+     * 
+     * @throws StorageException
+     *             If the BufferedWriter can't be initialised
+     */
+    public void startWritingAtomically() throws StorageException {
+        if (writer != null) {
+            stopWriting();
+        }
+        tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            tempChannel = out.getChannel();
+            writer = new BufferedWriter(new OutputStreamWriter(out));
+        } catch (final IOException e) {
+            tempFile = null;
+            tempChannel = null;
+            throw new StorageException("Could not start writing to temp file!",
+                    e);
+        }
+    }
+
+    /**
+     * Stops writing without keeping anything written. If writing atomically,
+     * the temporary file is deleted and the file is left untouched
+     */
+    public void abortWriting() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (final IOException ignore) {
+        }
+        writer = null;
+
+        if (tempFile != null) {
+            tempFile.delete();
+            tempFile = null;
+        }
+        tempChannel = null;
+    }
+
+    /**
+     * Gets ready to write to the end of the file, keeping its existing
+     * contents
+     * 
+     * @throws StorageException
+     *             If the BufferedWriter can't be initialised
+     */
+    public void startAppending() throws StorageException {
+        if (writer != null) {
+            stopWriting();
+        }
+        try {
+            if (!file.exists()) {
+                create();
+            }
+            final FileOutputStream out = new FileOutputStream(file, true);
+            tempChannel = out.getChannel();
+            writer = new BufferedWriter(new OutputStreamWriter(out));
+        } catch (final IOException e) {
+            throw new StorageException("Could not start appending to file!", e);
+        }
+    }
+
+    /**
+     * Flushes anything written so far to the file
+     * 
+     * @throws StorageException
+     *             If the BufferedWriter can't be flushed
+     */
+    public void flush() throws StorageException {
+        try {
+            writer.flush();
+        } catch (final IOException e) {
+            throw new StorageException("Could not flush file!", e);
+        }
+    }
+
+    /**
+     * Flushes anything written so far and forces it to disk, so it survives a
+     * crash of the machine as well as of the server
+     * 
+     * @throws StorageException
+     *             If the BufferedWriter can't be flushed, or the file can't be
+     *             forced to disk
+     */
+    public void force() throws StorageException {
+        flush();
+        if (tempChannel != null) {
+            try {
+                tempChannel.force(false);
+            } catch (final IOException e) {
+                throw new StorageException("Could not force file to disk!", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether this FileHandler is currently writing to the file
+     * 
+     * @return Whether the file is open for writing
+     */
+    public boolean isWriting() {
+        return writer != null;
+    }
+
     /**
      * Closes the BufferedWriter used by this FileHandler to perform operations
-     * on the file
+     * on the file. If writing atomically, the temporary file then replaces the
+     * file
      * 
      * @throws StorageException
      *             If the BufferedWruter can't be flushed / closed
@@ -71,11 +199,65 @@ public abstract class FileHandler {
     public void stopWriting() throws StorageException {
         try {
             writer.flush();
+            if (tempFile != null) {
+                // Make sure the contents are on disk before the rename, or a
+                // crash could leave the renamed file empty
+                tempChannel.force(true);
+            }
             writer.close();
             writer = null;
+            tempChannel = null;
         } catch (final IOException e) {
+            abortWriting();
             throw new StorageException("Could not flush or close file!", e);
         }
+
+        if (tempFile != null) {
+            try {
+                replace(tempFile, file);
+            } catch (final IOException e) {
+                throw new StorageException(
+                        "Could not replace file with temp file!", e);
+
+            } finally {
+                tempFile.delete();
+                tempFile = null;
+            }
+        }
+    }
+
+    /**
+     * Renames the given temporary file over the given target file, atomically
+     * where the file system supports it, then forces the rename itself to
+     * disk by syncing the parent directory
+     * 
+     * @param temp
+     *            The temporary file, which should already be forced to disk
+     * @param dest
+     *            The file to replace
+     * @throws IOException
+     *             If the temporary file can't be renamed
+     */
+    static void replace(final File temp, final File dest) throws IOException {
+        final Path target = dest.toPath();
+        try {
+            java.nio.file.Files.move(temp.toPath(), target,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(temp.toPath(), target,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        final Path dir = target.toAbsolutePath().getParent();
+        if (dir != null) {
+            try (final FileChannel dirChannel = FileChannel.open(dir,
+                    StandardOpenOption.READ)) {
+                dirChannel.force(true);
+            } catch (final IOException ignore) {
+                // Not all platforms allow directories to be opened
+            }
+        }
     }
 
     /**
@@ -114,7 +296,8 @@ public abstract class FileHandler {
     }
 
     /**
-     * Backs up the file in a file with the same name + ".bck"
+     * Backs up the file in a file with the same name + ".bck". This copies the
+     * whole file, so writing atomically should be preferred for saving
      * 
      * @throws StorageException
      *             When we fail to back up the file
@@ -26,6 +26,29 @@ public final class FileManager {
      * The JSON file handler for storing current command codes
      */
     private final JSONFileHandler codeStore;
+    /**
+     * The JSON file handler for storing changes to command codes since the
+     * code store was last written in full
+     */
+    private final JSONFileHandler deltaStore;
+    /**
+     * The binary file handler for storing command codes, used instead of the
+     * JSON file if the binary storage format is configured
+     */
+    private final BinaryFileHandler binaryCodeStore;
+    /**
+     * The journal of changes to command codes since the code store was last
+     * written
+     */
+    private final CodeJournal journal;
+    /**
+     * The archive spent command codes are kept in, if they are loaded lazily
+     */
+    private final RecordArchive spentArchive;
+    /**
+     * The lock held on the code storage while codes are loaded
+     */
+    private final StorageLock storageLock;
 
     public FileManager(final CommandCodes plugin) {
         this.plugin = plugin;
@@ -53,6 +76,11 @@ public final class FileManager {
         // Create configuration / data objects
         config = YamlConfiguration.loadConfiguration(configFile);
         codeStore = new JSONFileHandler(codeStorage);
+        deltaStore = new JSONFileHandler(getFile("curcodes.delta"));
+        binaryCodeStore = new BinaryFileHandler(getFile("curcodes.dat"));
+        journal = new CodeJournal(getFile("curcodes.journal"));
+        spentArchive = new RecordArchive(getFile("spentcodes.dat"));
+        storageLock = new StorageLock(getFile("curcodes.lock"));
     }
 
     public File getConfigFile() {
@@ -77,6 +105,55 @@ public final class FileManager {
         return codeStore;
     }
 
+    /**
+     * Gets the JSONFileHandler which handles the storage of changes to codes
+     * since the code store was last written in full
+     * 
+     * @return The JSONFileHandler for the command code delta file
+     */
+    public JSONFileHandler getDeltaStore() {
+        return deltaStore;
+    }
+
+    /**
+     * Gets the BinaryFileHandler which handles the binary storage of codes
+     * 
+     * @return The BinaryFileHandler for the binary command code file
+     */
+    public BinaryFileHandler getBinaryCodeStore() {
+        return binaryCodeStore;
+    }
+
+    /**
+     * Gets the CodeJournal which records changes to command codes between
+     * writes of the code store
+     * 
+     * @return The CodeJournal for command code changes
+     */
+    public CodeJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the RecordArchive which spent command codes are kept in when they
+     * are loaded lazily
+     * 
+     * @return The RecordArchive for spent command codes
+     */
+    public RecordArchive getSpentArchive() {
+        return spentArchive;
+    }
+
+    /**
+     * Gets the StorageLock which is held on the code storage from when codes
+     * are loaded until the store is closed
+     * 
+     * @return The StorageLock for the code storage
+     */
+    public StorageLock getStorageLock() {
+        return storageLock;
+    }
+
     /**
      * Gets the file with the given name within the CommandCodes plugin's data
      * folder
@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import pw.ollie.commandcodes.storage.org.json.JSONException;
 import pw.ollie.commandcodes.storage.org.json.JSONObject;
+import pw.ollie.commandcodes.storage.org.json.JSONPullParser;
 
 /**
  * A utility for storing JSON data in a File
@@ -43,6 +44,45 @@ public final class JSONFileHandler extends FileHandler {
         }
     }
 
+    /**
+     * Writes the given value to the file as a single line of JSON, streaming
+     * it straight into the file's writer
+     * 
+     * @param value
+     *            The value to write to the file
+     * @throws StorageException
+     *             If the value can't be written to the file
+     */
+    public void write(final JSONWritable value) throws StorageException {
+        if (writer == null) {
+            throw new IllegalStateException(
+                    "Cannot write before initialising the BufferedWriter!");
+        }
+        try {
+            value.writeJSON(writer);
+            writer.newLine();
+        } catch (final IOException e) {
+            throw new StorageException(
+                    "Could not write JSON to file (or could not add new line)!",
+                    e);
+        }
+    }
+
+    /**
+     * Creates a parser which reads the JSON values in the file one event at a
+     * time, from where reading has got to. It can only be used until reading
+     * is stopped
+     * 
+     * @return A parser reading from the file
+     */
+    public JSONPullParser parser() {
+        if (reader == null) {
+            throw new IllegalStateException(
+                    "Cannot parse before initialising the BufferedReader!");
+        }
+        return new JSONPullParser(reader);
+    }
+
     /**
      * Reads a JSONObject from the file
      * 
@@ -65,4 +105,26 @@ public final class JSONFileHandler extends FileHandler {
             throw new StorageException("Could not read line from file!", e);
         }
     }
+
+    /**
+     * Checks whether the rest of the file is empty, reading past any blank
+     * lines left in it
+     * 
+     * @throws StorageException
+     *             If the file can't be read
+     * @return Whether there are no more lines with anything on them
+     */
+    public boolean isAtEnd() throws StorageException {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (final IOException e) {
+            throw new StorageException("Could not read line from file!", e);
+        }
+    }
 }
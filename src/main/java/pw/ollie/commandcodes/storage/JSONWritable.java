@@ -0,0 +1,20 @@
+package pw.ollie.commandcodes.storage;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Something which can write itself as a single JSON object straight to a
+ * Writer, without building a JSONObject or a string first
+ */
+public interface JSONWritable {
+    /**
+     * Writes this as a single-line JSON object to the given writer
+     * 
+     * @param out
+     *            The writer to write to
+     * @throws IOException
+     *             If the writer fails
+     */
+    void writeJSON(Writer out) throws IOException;
+}
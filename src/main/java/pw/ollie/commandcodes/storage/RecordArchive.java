@@ -0,0 +1,279 @@
+package pw.ollie.commandcodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only file of length-prefixed binary records, which can be read
+ * back individually by their offset in the file. A record only partly written
+ * before a crash is cut off the end of the file when it is next opened, as is
+ * anything after a zero length, so records can't be empty
+ */
+public final class RecordArchive {
+    /**
+     * The magic number at the start of every archive file ("CCAR")
+     */
+    private static final int MAGIC = 0x43434152;
+    /**
+     * The size of the header at the start of the file
+     */
+    private static final int HEADER_SIZE = 4;
+    /**
+     * The size of the buffer used when scanning the file
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The File records are stored in
+     */
+    private final File file;
+
+    /**
+     * The channel for the file, while it is open
+     */
+    private FileChannel channel;
+    /**
+     * The offset at which the next record will be appended
+     */
+    private long end;
+
+    /**
+     * Creates a new RecordArchive with the given File
+     * 
+     * @param file
+     *            The File to store records in
+     */
+    public RecordArchive(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the File this RecordArchive stores records in
+     * 
+     * @return This RecordArchive's file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens the archive, creating it if it doesn't exist, and scans every
+     * record in it, passing each one to the given visitor
+     * 
+     * @param visitor
+     *            The visitor to pass each record to, or null to skip scanning
+     * @throws StorageException
+     *             If the archive can't be opened or read
+     */
+    public synchronized void open(final RecordVisitor visitor)
+            throws StorageException {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            if (channel.size() < HEADER_SIZE) {
+                channel.truncate(0);
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).flip();
+                channel.write(header, 0);
+                end = HEADER_SIZE;
+                return;
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new StorageException("Not a code archive file: "
+                        + file.getPath());
+            }
+
+            end = scan(visitor);
+            if (end < channel.size()) {
+                // Cut off a record left incomplete by a crash
+                channel.truncate(end);
+            }
+        } catch (final IOException e) {
+            close();
+            throw new StorageException("Could not open archive!", e);
+        } catch (final StorageException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the given record to the archive. The record isn't forced to
+     * disk until force is called
+     * 
+     * @param record
+     *            The record to append, from its position to its limit
+     * @return The offset of the record in the archive
+     * @throws StorageException
+     *             If the record can't be written
+     * @throws IllegalArgumentException
+     *             If the record is empty
+     */
+    public synchronized long append(final ByteBuffer record)
+            throws StorageException {
+        if (!record.hasRemaining()) {
+            throw new IllegalArgumentException("Records can't be empty");
+        }
+        final long offset = end;
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(record.remaining()).flip();
+        try {
+            long position = offset;
+            while (length.hasRemaining()) {
+                position += channel.write(length, position);
+            }
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            end = position;
+        } catch (final IOException e) {
+            throw new StorageException(
+                    "Could not append record to archive!", e);
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the record at the given offset
+     * 
+     * @param offset
+     *            The offset of the record, as returned by append or passed to
+     *            a RecordVisitor
+     * @return A buffer holding the record
+     * @throws StorageException
+     *             If the record can't be read
+     */
+    public synchronized ByteBuffer read(final long offset)
+            throws StorageException {
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, offset);
+            final ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+            readFully(record, offset + 4);
+            record.flip();
+            return record;
+        } catch (final IOException e) {
+            throw new StorageException(
+                    "Could not read record from archive!", e);
+        }
+    }
+
+    /**
+     * Forces every appended record to disk
+     * 
+     * @throws StorageException
+     *             If the archive can't be forced to disk
+     */
+    public synchronized void force() throws StorageException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (final IOException e) {
+            throw new StorageException("Could not force archive to disk!", e);
+        }
+    }
+
+    /**
+     * Closes the archive, if it is open
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ignore) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Scans the records in the file, returning the offset just after the last
+     * complete record
+     */
+    private long scan(final RecordVisitor visitor) throws IOException {
+        final long size = channel.size();
+        long position = HEADER_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.limit(0);
+
+        while (position + 4 <= size) {
+            if (buffer.remaining() < 4) {
+                refill(buffer, position);
+            }
+            final int length = buffer.getInt();
+            if (length <= 0 || position + 4 + length > size) {
+                break;
+            }
+            if (buffer.remaining() < length) {
+                if (length > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(length);
+                    buffer.limit(0);
+                }
+                refill(buffer, position + 4);
+            }
+
+            if (visitor != null) {
+                final ByteBuffer record = buffer.slice();
+                record.limit(length);
+                visitor.visit(position, record);
+            }
+            buffer.position(buffer.position() + length);
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    /**
+     * Refills the given buffer with the file's contents from the given
+     * position
+     */
+    private void refill(final ByteBuffer buffer, final long from)
+            throws IOException {
+        buffer.clear();
+        long position = from;
+        int read;
+        while (buffer.hasRemaining()
+                && (read = channel.read(buffer, position)) > 0) {
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void readFully(final ByteBuffer buffer, final long offset)
+            throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException(
+                        "Archive ended part way through a record!");
+
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Receives each record when an archive is scanned
+     */
+    public interface RecordVisitor {
+        /**
+         * Visits a record in the archive
+         * 
+         * @param offset
+         *            The offset of the record in the archive
+         * @param record
+         *            A buffer holding the record, which is only valid for the
+         *            duration of this call
+         */
+        void visit(long offset, ByteBuffer record);
+    }
+}
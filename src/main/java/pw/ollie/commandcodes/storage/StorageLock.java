@@ -0,0 +1,125 @@
+package pw.ollie.commandcodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A lock on the plugin's code storage, held from when codes are loaded until
+ * the store is closed. A save which outlives the plugin being disabled keeps
+ * holding it, so that the codes aren't loaded again, for example by a reload,
+ * while they are still being written. The lock is held on a file, so it also
+ * keeps out other processes using the same data folder
+ */
+public final class StorageLock {
+    /**
+     * The time to wait between attempts to take the lock, in milliseconds
+     */
+    private static final long RETRY_INTERVAL = 50;
+
+    /**
+     * The file the lock is held on
+     */
+    private final File file;
+    /**
+     * The channel the lock is held through, while it is held
+     */
+    private FileChannel channel;
+    /**
+     * The lock on the file, while it is held
+     */
+    private FileLock lock;
+
+    /**
+     * Creates a new StorageLock which is held on the given file
+     * 
+     * @param file
+     *            The file to hold the lock on, which is created if needed
+     */
+    public StorageLock(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Takes the lock, unless it is held by another StorageLock on the same
+     * file or by another process
+     * 
+     * @return Whether the lock is now held by this StorageLock
+     * @throws StorageException
+     *             If the lock file can't be opened
+     */
+    public synchronized boolean tryAcquire() throws StorageException {
+        if (lock != null) {
+            return true;
+        }
+
+        FileChannel opened = null;
+        try {
+            opened = new RandomAccessFile(file, "rw").getChannel();
+            // Locks are held by the whole JVM, so a lock held by another
+            // StorageLock in this JVM shows up as an overlapping lock
+            lock = opened.tryLock();
+        } catch (final OverlappingFileLockException e) {
+            lock = null;
+        } catch (final IOException e) {
+            closeQuietly(opened);
+            throw new StorageException("Could not lock " + file.getName(), e);
+        }
+        if (lock == null) {
+            closeQuietly(opened);
+            return false;
+        }
+        channel = opened;
+        return true;
+    }
+
+    /**
+     * Takes the lock, waiting for as long as it is held elsewhere
+     * 
+     * @throws StorageException
+     *             If the lock file can't be opened, or the thread is
+     *             interrupted while waiting
+     */
+    public void acquire() throws StorageException {
+        while (!tryAcquire()) {
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while waiting to lock "
+                        + file.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Releases the lock, if it is held
+     */
+    public synchronized void release() {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (final IOException e) {
+            // Closing the channel releases the lock regardless
+        }
+        closeQuietly(channel);
+        lock = null;
+        channel = null;
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // The lock file holds nothing, so there's nothing to lose
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package pw.ollie.commandcodes.storage.org.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A JSONPullParser reads JSON text from a Reader or a CharBuffer one event at
+ * a time, without building JSONObjects, JSONArrays or boxed values. The text
+ * of the current key, string or number is kept in a reusable buffer, so the
+ * caller can compare it, convert it, or copy it out only when it needs to.
+ * Any number of values may follow each other in the source, separated by
+ * whitespace, so a file with one JSON object per line can be read by a single
+ * parser.
+ */
+public class JSONPullParser {
+    /**
+     * The events a JSONPullParser produces.
+     */
+    public enum Event {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, STRING, NUMBER,
+        TRUE, FALSE, NULL,
+        /**
+         * There are no more values in the source.
+         */
+        END
+    }
+
+    /**
+     * The stack entry of an object being read.
+     */
+    private static final byte OBJECT = 1;
+    /**
+     * The stack entry of an array being read.
+     */
+    private static final byte ARRAY = 2;
+    /**
+     * The amount of characters read from a Reader at a time.
+     */
+    private static final int READ_SIZE = 8192;
+
+    /**
+     * The Reader being read from, or null if reading from a CharBuffer.
+     */
+    private final Reader reader;
+    /**
+     * The characters being read from: the CharBuffer given, or a buffer of
+     * characters read from the Reader.
+     */
+    private final CharBuffer input;
+    /**
+     * A character which has been read but not yet used, or -2 if there isn't
+     * one.
+     */
+    private int pushedBack = -2;
+    /**
+     * The amount of characters used so far, for error messages.
+     */
+    private long index;
+
+    /**
+     * The containers being read, innermost last.
+     */
+    private byte[] stack = new byte[8];
+    /**
+     * Whether each container being read has had an element yet.
+     */
+    private boolean[] started = new boolean[8];
+    /**
+     * The amount of containers being read.
+     */
+    private int depth;
+    /**
+     * Whether a key has been read and its value is next.
+     */
+    private boolean expectValue;
+
+    /**
+     * The text of the current key, string or number.
+     */
+    private char[] text = new char[64];
+    /**
+     * The length of the current text.
+     */
+    private int textLength;
+    /**
+     * A view of the current text, reused for each event.
+     */
+    private CharBuffer textView = CharBuffer.wrap(text);
+    /**
+     * The last event produced.
+     */
+    private Event event;
+
+    /**
+     * Construct a JSONPullParser which reads from a Reader.
+     * 
+     * @param reader
+     *            A reader.
+     */
+    public JSONPullParser(final Reader reader) {
+        this.reader = reader;
+        input = CharBuffer.allocate(READ_SIZE);
+        input.flip();
+    }
+
+    /**
+     * Construct a JSONPullParser which reads the remaining characters of a
+     * CharBuffer, moving its position as they are read.
+     * 
+     * @param buffer
+     *            A buffer of JSON text.
+     */
+    public JSONPullParser(final CharBuffer buffer) {
+        reader = null;
+        input = buffer;
+    }
+
+    /**
+     * Read the next event.
+     * 
+     * @return The next event, or END if there are no more values.
+     * @throws JSONException
+     *             If the text isn't valid JSON or can't be read.
+     */
+    public Event next() throws JSONException {
+        int c = nextClean();
+        if (depth == 0) {
+            if (c == -1) {
+                return event = Event.END;
+            }
+            return event = startValue(c);
+        }
+
+        if (stack[depth - 1] == OBJECT) {
+            if (expectValue) {
+                expectValue = false;
+                return event = startValue(c);
+            }
+            if (c == '}') {
+                depth--;
+                return event = Event.END_OBJECT;
+            }
+            if (started[depth - 1]) {
+                if (c != ',') {
+                    throw syntaxError("Expected a ',' or '}'");
+                }
+                c = nextClean();
+            }
+            if (c != '"' && c != '\'') {
+                throw syntaxError("Expected a key");
+            }
+            readString((char) c);
+            started[depth - 1] = true;
+            if (nextClean() != ':') {
+                throw syntaxError("Expected a ':' after a key");
+            }
+            expectValue = true;
+            return event = Event.KEY;
+        }
+
+        if (c == ']') {
+            depth--;
+            return event = Event.END_ARRAY;
+        }
+        if (started[depth - 1]) {
+            if (c != ',') {
+                throw syntaxError("Expected a ',' or ']'");
+            }
+            c = nextClean();
+        }
+        started[depth - 1] = true;
+        return event = startValue(c);
+    }
+
+    /**
+     * Skip the next value, including everything in it if it is an object or an
+     * array. This is used to skip the value of a key, or an element of an
+     * array.
+     * 
+     * @throws JSONException
+     *             If the text isn't valid JSON or can't be read.
+     */
+    public void skipValue() throws JSONException {
+        final Event start = next();
+        if (start == Event.START_OBJECT || start == Event.START_ARRAY) {
+            final int target = depth - 1;
+            while (depth > target) {
+                if (next() == Event.END) {
+                    throw syntaxError("Unexpected end of input");
+                }
+            }
+        } else if (start == Event.END_OBJECT || start == Event.END_ARRAY
+                || start == Event.END) {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    /**
+     * Get the last event produced.
+     * 
+     * @return The last event, or null if next hasn't been called.
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * Get the text of the current key, string or number as a new String.
+     * 
+     * @return The current text.
+     */
+    public String getText() {
+        return new String(text, 0, textLength);
+    }
+
+    /**
+     * Get a view of the text of the current key, string or number, without
+     * copying it. The view is only valid until next is called.
+     * 
+     * @return The current text.
+     */
+    public CharSequence getTextView() {
+        textView.clear();
+        textView.limit(textLength);
+        return textView;
+    }
+
+    /**
+     * Determine if the text of the current key, string or number is the given
+     * string.
+     * 
+     * @param string
+     *            The string to compare to.
+     * @return true if the current text is the given string.
+     */
+    public boolean textEquals(final String string) {
+        if (string.length() != textLength) {
+            return false;
+        }
+        for (int i = 0; i < textLength; i++) {
+            if (text[i] != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the current number, or string containing a number, as an int.
+     * 
+     * @return The current number.
+     * @throws JSONException
+     *             If the current value isn't a number.
+     */
+    public int getInt() throws JSONException {
+        if (event != Event.NUMBER && event != Event.STRING) {
+            throw syntaxError("Expected a number");
+        }
+        // Plain integers are parsed from the buffer, anything else as a
+        // double, as JSONObject.getInt does
+        if (textLength > 0 && textLength < 10) {
+            int i = text[0] == '-' ? 1 : 0;
+            int value = 0;
+            for (; i < textLength && text[i] >= '0' && text[i] <= '9'; i++) {
+                value = value * 10 + (text[i] - '0');
+            }
+            if (i == textLength && (text[0] != '-' || textLength > 1)) {
+                return text[0] == '-' ? -value : value;
+            }
+        }
+        try {
+            return (int) Double.parseDouble(getText());
+        } catch (final NumberFormatException e) {
+            throw syntaxError("Expected a number");
+        }
+    }
+
+    /**
+     * Get the current boolean, or string containing a boolean.
+     * 
+     * @return The current boolean.
+     * @throws JSONException
+     *             If the current value isn't a boolean.
+     */
+    public boolean getBoolean() throws JSONException {
+        if (event == Event.TRUE) {
+            return true;
+        } else if (event == Event.FALSE) {
+            return false;
+        } else if (event == Event.STRING) {
+            final String string = getText();
+            if (string.equalsIgnoreCase("true")) {
+                return true;
+            } else if (string.equalsIgnoreCase("false")) {
+                return false;
+            }
+        }
+        throw syntaxError("Expected a boolean");
+    }
+
+    /**
+     * Make a JSONException to signal a syntax error.
+     * 
+     * @param message
+     *            The error message.
+     * @return A JSONException object, suitable for throwing
+     */
+    public JSONException syntaxError(final String message) {
+        return new JSONException(message + toString());
+    }
+
+    /**
+     * Make a printable string of this JSONPullParser.
+     * 
+     * @return " at {index}"
+     */
+    @Override
+    public String toString() {
+        return " at " + index;
+    }
+
+    /**
+     * Read the start of a value, beginning with the given character.
+     */
+    private Event startValue(final int c) throws JSONException {
+        switch (c) {
+        case '{':
+            push(OBJECT);
+            return Event.START_OBJECT;
+        case '[':
+            push(ARRAY);
+            return Event.START_ARRAY;
+        case '"':
+        case '\'':
+            readString((char) c);
+            return Event.STRING;
+        case -1:
+            throw syntaxError("Unexpected end of input");
+        default:
+            break;
+        }
+
+        // Unquoted text, which is a literal or a number
+        textLength = 0;
+        int cur = c;
+        while (cur >= ' ' && ",:]}/\\\"[{;=#".indexOf(cur) < 0) {
+            append((char) cur);
+            cur = read();
+        }
+        pushedBack = cur;
+        if (textLength == 0) {
+            throw syntaxError("Missing value");
+        }
+        if (textEquals("true")) {
+            return Event.TRUE;
+        } else if (textEquals("false")) {
+            return Event.FALSE;
+        } else if (textEquals("null")) {
+            return Event.NULL;
+        }
+        final char first = text[0];
+        if ((first >= '0' && first <= '9') || first == '-' || first == '.') {
+            return Event.NUMBER;
+        }
+        // JSONObject accepts unquoted strings, so this does too
+        return Event.STRING;
+    }
+
+    /**
+     * Read the rest of a string which was opened with the given quote into the
+     * text buffer.
+     */
+    private void readString(final char quote) throws JSONException {
+        textLength = 0;
+        for (;;) {
+            int c = read();
+            switch (c) {
+            case -1:
+            case '\n':
+            case '\r':
+                throw syntaxError("Unterminated string");
+            case '\\':
+                c = read();
+                switch (c) {
+                case 'b':
+                    append('\b');
+                    break;
+                case 't':
+                    append('\t');
+                    break;
+                case 'n':
+                    append('\n');
+                    break;
+                case 'f':
+                    append('\f');
+                    break;
+                case 'r':
+                    append('\r');
+                    break;
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int digit = JSONTokener.dehexchar((char) read());
+                        if (digit < 0) {
+                            throw syntaxError("Illegal escape.");
+                        }
+                        value = value << 4 | digit;
+                    }
+                    append((char) value);
+                    break;
+                case '"':
+                case '\'':
+                case '\\':
+                case '/':
+                    append((char) c);
+                    break;
+                default:
+                    throw syntaxError("Illegal escape.");
+                }
+                break;
+            default:
+                if (c == quote) {
+                    return;
+                }
+                append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Add a character to the text buffer, growing it if needed.
+     */
+    private void append(final char c) {
+        if (textLength == text.length) {
+            text = Arrays.copyOf(text, text.length * 2);
+            textView = CharBuffer.wrap(text);
+        }
+        text[textLength++] = c;
+    }
+
+    /**
+     * Start reading a new object or array.
+     */
+    private void push(final byte container) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            started = Arrays.copyOf(started, depth * 2);
+        }
+        stack[depth] = container;
+        started[depth] = false;
+        depth++;
+    }
+
+    /**
+     * Get the next character which isn't whitespace.
+     * 
+     * @return A character, or -1 if there are no more characters.
+     */
+    private int nextClean() throws JSONException {
+        for (;;) {
+            final int c = read();
+            if (c == -1 || c > ' ') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Get the next character.
+     * 
+     * @return A character, or -1 if there are no more characters.
+     */
+    private int read() throws JSONException {
+        if (pushedBack != -2) {
+            final int c = pushedBack;
+            pushedBack = -2;
+            return c;
+        }
+        if (!input.hasRemaining()) {
+            if (reader == null || !fill()) {
+                return -1;
+            }
+        }
+        index++;
+        return input.get();
+    }
+
+    /**
+     * Read more characters from the Reader.
+     * 
+     * @return false if the Reader has no more characters.
+     */
+    private boolean fill() throws JSONException {
+        try {
+            input.clear();
+            int read;
+            do {
+                read = reader.read(input);
+            } while (read == 0);
+            input.flip();
+            return read > 0;
+        } catch (final IOException e) {
+            throw new JSONException(e);
+        }
+    }
+}
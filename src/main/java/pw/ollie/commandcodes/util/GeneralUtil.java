@@ -8,6 +8,27 @@ import java.util.UUID;
  * General utility methods for CommandCodes
  */
 public final class GeneralUtil {
+    /**
+     * The length of a UUID in its canonical hexadecimal form
+     */
+    public static final int UUID_LENGTH = 36;
+    /**
+     * The length of a UUID's 16 bytes in unpadded base64
+     */
+    public static final int UUID_BASE64_LENGTH = 22;
+
+    /**
+     * The lower case hexadecimal digits, by value
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /**
+     * The URL and file name safe base64 digits, by value, so encoded UUIDs
+     * never need escaping in JSON
+     */
+    private static final char[] BASE64_DIGITS = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+
+
     /**
      * Converts the given string list into a single string, with each list
      * element separated by the given separator in the string
@@ -22,13 +43,16 @@ public final class GeneralUtil {
      */
     public static final String uuidListToString(final List<UUID> uuidList,
             final String separator) {
-        final StringBuilder builder = new StringBuilder();
+        final StringBuilder builder = new StringBuilder(uuidList.size()
+                * (UUID_LENGTH + separator.length()));
+        final char[] chars = new char[UUID_LENGTH];
         for (final UUID curUuid : uuidList) {
-            builder.append(curUuid.toString()).append(separator);
-        }
-        if (builder.length() > 0) {
-            // Remove the last separator from the built string
-            builder.setLength(builder.length() - separator.length());
+            if (builder.length() > 0) {
+                builder.append(separator);
+            }
+            formatUUID(curUuid.getMostSignificantBits(),
+                    curUuid.getLeastSignificantBits(), chars, 0);
+            builder.append(chars);
         }
         return builder.toString();
     }
@@ -47,19 +71,218 @@ public final class GeneralUtil {
      */
     public static final List<UUID> uuidStringToList(final String string,
             final String separator) {
-        final List<UUID> result = new ArrayList<>();
-        if (!string.contains(separator) && string.length() != 0) {
-            result.add(UUID.fromString(string));
-            return result;
+        final PackedUUIDList packed = new PackedUUIDList();
+        parseUUIDList(string, separator, packed);
+        return new ArrayList<>(packed.view());
+    }
+
+    /**
+     * Parses the given string of UUIDs, split using the given separator, and
+     * appends each to the given list without creating UUID objects or
+     * substrings. Each UUID may be in its canonical hexadecimal form or its
+     * base64 form, so strings written with either encoding can be read
+     * 
+     * @param string
+     *            The string of UUIDs to parse
+     * @param separator
+     *            The string which separates the UUIDs in the string
+     * @param dest
+     *            The list to append the parsed UUIDs to
+     * @throws IllegalArgumentException
+     *             If one of the UUIDs isn't valid
+     */
+    public static void parseUUIDList(final String string,
+            final String separator, final PackedUUIDList dest) {
+        final int length = string.length();
+        int start = 0;
+        while (start < length) {
+            int end = string.indexOf(separator, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                parseUUID(string, start, end, dest);
+            }
+            start = end + separator.length();
         }
-        final String[] split = string.split(separator);
-        if (split == null || split.length == 0) {
-            return result;
+    }
+
+    /**
+     * Parses the given UUID, in either its canonical hexadecimal form or its
+     * base64 form, and appends it to the given list
+     * 
+     * @param string
+     *            The UUID to parse
+     * @param dest
+     *            The list to append the parsed UUID to
+     * @throws IllegalArgumentException
+     *             If the UUID isn't valid
+     */
+    public static void parseUUID(final CharSequence string,
+            final PackedUUIDList dest) {
+        parseUUID(string, 0, string.length(), dest);
+    }
+
+    /**
+     * Parses the UUID between the given positions in the given string and
+     * appends it to the given list
+     */
+    private static void parseUUID(final CharSequence string,
+            final int start, final int end, final PackedUUIDList dest) {
+        final int length = end - start;
+        if (length == UUID_LENGTH && string.charAt(start + 8) == '-'
+                && string.charAt(start + 13) == '-'
+                && string.charAt(start + 18) == '-'
+                && string.charAt(start + 23) == '-') {
+            dest.add(parseHex(string, start, 8) << 32
+                    | parseHex(string, start + 9, 4) << 16
+                    | parseHex(string, start + 14, 4),
+                    parseHex(string, start + 19, 4) << 48
+                            | parseHex(string, start + 24, 12));
+        } else if (length == UUID_BASE64_LENGTH) {
+            long msb = 0;
+            long lsb = 0;
+            // 21 digits hold the first 126 bits, and the last digit holds the
+            // final 2 bits in its top bits
+            for (int i = start; i < end - 1; i++) {
+                final int value = base64Value(string.charAt(i));
+                msb = msb << 6 | lsb >>> 58;
+                lsb = lsb << 6 | value;
+            }
+            final int last = base64Value(string.charAt(end - 1));
+            if ((last & 0xF) != 0) {
+                throw new IllegalArgumentException("Invalid UUID: "
+                        + string.subSequence(start, end));
+            }
+            msb = msb << 2 | lsb >>> 62;
+            lsb = lsb << 2 | last >>> 4;
+            dest.add(msb, lsb);
+        } else {
+            // Not canonical, but UUID.fromString accepts shortened groups
+            dest.add(UUID.fromString(string.subSequence(start, end)
+                    .toString()));
         }
-        for (final String cur : split) {
-            result.add(UUID.fromString(cur));
+    }
+
+    /**
+     * Parses the given amount of hexadecimal digits from the given position
+     */
+    private static long parseHex(final CharSequence string,
+            final int offset, final int digits) {
+        long value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            final int digit = Character.digit(string.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid hexadecimal digit in UUID: "
+                                + string.charAt(i));
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Gets the value of the given base64 digit
+     */
+    private static int base64Value(final char digit) {
+        if (digit >= 'A' && digit <= 'Z') {
+            return digit - 'A';
+        } else if (digit >= 'a' && digit <= 'z') {
+            return digit - 'a' + 26;
+        } else if (digit >= '0' && digit <= '9') {
+            return digit - '0' + 52;
+        } else if (digit == '-') {
+            return 62;
+        } else if (digit == '_') {
+            return 63;
+        }
+        throw new IllegalArgumentException("Invalid base64 digit in UUID: "
+                + digit);
+    }
+
+    /**
+     * Writes the canonical hexadecimal form of the UUID with the given bits
+     * into the given array, in the same format as UUID.toString but without
+     * creating a UUID or any strings
+     * 
+     * @param msb
+     *            The most significant bits of the UUID
+     * @param lsb
+     *            The least significant bits of the UUID
+     * @param dest
+     *            The array to write to, which must have room for UUID_LENGTH
+     *            characters from the offset
+     * @param offset
+     *            The position in the array to start writing at
+     */
+    public static void formatUUID(final long msb, final long lsb,
+            final char[] dest, final int offset) {
+        formatHex(msb >>> 32, 8, dest, offset);
+        dest[offset + 8] = '-';
+        formatHex(msb >>> 16, 4, dest, offset + 9);
+        dest[offset + 13] = '-';
+        formatHex(msb, 4, dest, offset + 14);
+        dest[offset + 18] = '-';
+        formatHex(lsb >>> 48, 4, dest, offset + 19);
+        dest[offset + 23] = '-';
+        formatHex(lsb, 12, dest, offset + 24);
+    }
+
+    /**
+     * Writes the 16 bytes of the UUID with the given bits into the given array
+     * as unpadded, URL safe base64, which is read back by parseUUIDList
+     * 
+     * @param msb
+     *            The most significant bits of the UUID
+     * @param lsb
+     *            The least significant bits of the UUID
+     * @param dest
+     *            The array to write to, which must have room for
+     *            UUID_BASE64_LENGTH characters from the offset
+     * @param offset
+     *            The position in the array to start writing at
+     */
+    public static void formatUUIDBase64(long msb, long lsb, final char[] dest,
+            final int offset) {
+        // Each digit takes the top 6 bits, and the last digit is padded with
+        // the zeros shifted in
+        for (int i = offset; i < offset + UUID_BASE64_LENGTH; i++) {
+            dest[i] = BASE64_DIGITS[(int) (msb >>> 58)];
+            msb = msb << 6 | lsb >>> 58;
+            lsb <<= 6;
+        }
+    }
+
+    /**
+     * Spreads the bits of the given value across the whole result, using the
+     * finalizer of the 64-bit MurmurHash3, so that values which differ in only
+     * a few bits give unrelated results. This is used to hash longs into open
+     * addressed tables and as the round function of the code permutation
+     * 
+     * @param value
+     *            The value to mix
+     * @return The mixed value
+     */
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Writes the lowest digits of the given value as hexadecimal, most
+     * significant digit first
+     */
+    private static void formatHex(long value, final int digits,
+            final char[] dest, final int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            dest[i] = HEX_DIGITS[(int) value & 0xF];
+            value >>>= 4;
         }
-        return result;
     }
 
     private GeneralUtil() {
@@ -0,0 +1,209 @@
+package pw.ollie.commandcodes.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs backed by an open-addressed table, which avoids
+ * the boxing and per-entry node overhead of a HashSet of Long objects
+ */
+public final class LongHashSet {
+    /**
+     * The value marking an unused slot in the table. Zero itself is tracked
+     * separately using the hasZero flag
+     */
+    private static final long FREE = 0L;
+    /**
+     * The maximum proportion of the table which may be used before it grows
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * The table of values, whose length is always a power of two
+     */
+    private long[] table;
+    /**
+     * Whether the value zero is in this set
+     */
+    private boolean hasZero;
+    /**
+     * The amount of values in this set
+     */
+    private int size;
+    /**
+     * The amount of values the table can hold before it must grow
+     */
+    private int threshold;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(final int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Adds the given value to this set
+     * 
+     * @param value
+     *            The value to add
+     * @return Whether the value was added, i.e false if it was already present
+     */
+    public boolean add(final long value) {
+        if (value == FREE) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+
+        final int mask = table.length - 1;
+        int idx = mix(value) & mask;
+        long cur;
+        while ((cur = table[idx]) != FREE) {
+            if (cur == value) {
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+        table[idx] = value;
+        if (++size >= threshold) {
+            rehash(table.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given value is in this set
+     * 
+     * @param value
+     *            The value to check for
+     * @return Whether this set contains the given value
+     */
+    public boolean contains(final long value) {
+        if (value == FREE) {
+            return hasZero;
+        }
+
+        final int mask = table.length - 1;
+        int idx = mix(value) & mask;
+        long cur;
+        while ((cur = table[idx]) != FREE) {
+            if (cur == value) {
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the given value from this set
+     * 
+     * @param value
+     *            The value to remove
+     * @return Whether the value was present in this set
+     */
+    public boolean remove(final long value) {
+        if (value == FREE) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+
+        final int mask = table.length - 1;
+        int idx = mix(value) & mask;
+        long cur;
+        while ((cur = table[idx]) != FREE) {
+            if (cur == value) {
+                shiftBack(idx);
+                size--;
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the amount of values in this set
+     * 
+     * @return The size of this set
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all values from this set
+     */
+    public void clear() {
+        Arrays.fill(table, FREE);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * Closes the gap left at the given slot by moving back any later entries
+     * in the same probe run, so that lookups don't stop early at the gap
+     * 
+     * @param gap
+     *            The slot which has just been emptied
+     */
+    private void shiftBack(int gap) {
+        final int mask = table.length - 1;
+        int idx = gap;
+        while (true) {
+            idx = (idx + 1) & mask;
+            final long cur = table[idx];
+            if (cur == FREE) {
+                break;
+            }
+            final int home = mix(cur) & mask;
+            // Only move the entry if the gap lies between its home slot and
+            // its current slot (cyclically)
+            if (((idx - home) & mask) >= ((idx - gap) & mask)) {
+                table[gap] = cur;
+                gap = idx;
+            }
+        }
+        table[gap] = FREE;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] old = table;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (final long value : old) {
+            if (value != FREE) {
+                int idx = mix(value) & mask;
+                while (table[idx] != FREE) {
+                    idx = (idx + 1) & mask;
+                }
+                table[idx] = value;
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        table = new long[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Hashes the given value so that sequential values don't cluster in the
+     * table
+     */
+    private static int mix(final long value) {
+        return (int) GeneralUtil.mix(value);
+    }
+}
@@ -0,0 +1,128 @@
+package pw.ollie.commandcodes.util;
+
+/**
+ * A map from primitive longs to primitive longs backed by an open-addressed
+ * table, which avoids the boxing and per-entry node overhead of a HashMap of
+ * Long objects. Entries can't be removed
+ */
+public final class LongLongHashMap {
+    /**
+     * The key marking an unused slot in the table. The key zero itself is
+     * tracked separately
+     */
+    private static final long FREE = 0L;
+
+    /**
+     * The keys, and the values at the same positions, whose lengths are always
+     * a power of two
+     */
+    private long[] keys;
+    private long[] values;
+    /**
+     * Whether the key zero is in this map, and its value
+     */
+    private boolean hasZero;
+    private long zeroValue;
+    /**
+     * The amount of entries in this map
+     */
+    private int size;
+
+    public LongLongHashMap() {
+        keys = new long[16];
+        values = new long[16];
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any existing value
+     * 
+     * @param key
+     *            The key
+     * @param value
+     *            The value
+     */
+    public void put(final long key, final long value) {
+        if (key == FREE) {
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+
+        final int mask = keys.length - 1;
+        int idx = mix(key) & mask;
+        long cur;
+        while ((cur = keys[idx]) != FREE) {
+            if (cur == key) {
+                values[idx] = value;
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = key;
+        values[idx] = value;
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Gets the value the given key maps to
+     * 
+     * @param key
+     *            The key
+     * @param def
+     *            The value to return if the key isn't in this map
+     * @return The value of the key, or def
+     */
+    public long get(final long key, final long def) {
+        if (key == FREE) {
+            return hasZero ? zeroValue : def;
+        }
+
+        final int mask = keys.length - 1;
+        int idx = mix(key) & mask;
+        long cur;
+        while ((cur = keys[idx]) != FREE) {
+            if (cur == key) {
+                return values[idx];
+            }
+            idx = (idx + 1) & mask;
+        }
+        return def;
+    }
+
+    /**
+     * Gets the amount of entries in this map
+     * 
+     * @return The size of this map
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final long key = oldKeys[i];
+            if (key != FREE) {
+                int idx = mix(key) & mask;
+                while (keys[idx] != FREE) {
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = key;
+                values[idx] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(final long value) {
+        return (int) GeneralUtil.mix(value);
+    }
+}
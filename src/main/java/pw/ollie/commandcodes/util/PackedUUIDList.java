@@ -0,0 +1,234 @@
+package pw.ollie.commandcodes.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An append-only list of UUIDs, packed as pairs of longs in a single array
+ * rather than stored as UUID objects, with an open-addressed hash index for
+ * constant time membership checks. A list may contain the same UUID more than
+ * once. All operations are synchronised on the list
+ */
+public final class PackedUUIDList {
+    /**
+     * The most and least significant bits of each UUID, in order
+     */
+    private long[] bits;
+    /**
+     * The amount of UUIDs in this list
+     */
+    private int size;
+    /**
+     * The hash index of distinct UUIDs, each slot holding the position of the
+     * UUID in this list plus one, or 0 if the slot is free. The length is
+     * always a power of two
+     */
+    private int[] index;
+    /**
+     * The amount of distinct UUIDs in the hash index
+     */
+    private int distinct;
+
+    public PackedUUIDList() {
+        this(4);
+    }
+
+    public PackedUUIDList(final int expectedSize) {
+        bits = new long[Math.max(2, expectedSize * 2)];
+        int capacity = 8;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        index = new int[capacity];
+    }
+
+    /**
+     * Appends the given UUID to this list
+     * 
+     * @param uuid
+     *            The UUID to add
+     * @return Whether the UUID wasn't already in this list
+     */
+    public boolean add(final UUID uuid) {
+        return add(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Appends the UUID with the given bits to this list
+     * 
+     * @param msb
+     *            The most significant bits of the UUID
+     * @param lsb
+     *            The least significant bits of the UUID
+     * @return Whether the UUID wasn't already in this list
+     */
+    public synchronized boolean add(final long msb, final long lsb) {
+        final boolean added = find(msb, lsb) < 0;
+
+        if (size * 2 == bits.length) {
+            bits = Arrays.copyOf(bits, bits.length * 2);
+        }
+        bits[size * 2] = msb;
+        bits[size * 2 + 1] = lsb;
+        size++;
+
+        if (added) {
+            insert(msb, lsb, size);
+            if (++distinct * 2 > index.length) {
+                rehash();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Checks whether the given UUID is in this list
+     * 
+     * @param uuid
+     *            The UUID to check for
+     * @return Whether this list contains the given UUID
+     */
+    public synchronized boolean contains(final UUID uuid) {
+        return find(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    /**
+     * Gets the UUID at the given position in this list
+     * 
+     * @param position
+     *            The position of the UUID
+     * @return The UUID at the given position
+     */
+    public synchronized UUID get(final int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position: " + position
+                    + ", size: " + size);
+        }
+        return new UUID(bits[position * 2], bits[position * 2 + 1]);
+    }
+
+    /**
+     * Gets the amount of UUIDs in this list
+     * 
+     * @return The size of this list
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the bits of every UUID in this list to the given buffer, 16
+     * bytes per UUID, most significant bits first
+     * 
+     * @param buffer
+     *            The buffer to write to, which must have room for 16 bytes
+     *            per UUID in this list
+     */
+    public synchronized void writeTo(final ByteBuffer buffer) {
+        for (int i = 0; i < size * 2; i++) {
+            buffer.putLong(bits[i]);
+        }
+    }
+
+    /**
+     * Writes every UUID in this list to the given writer in the given
+     * encoding, separated by the given separator, without creating UUID
+     * objects or strings
+     * 
+     * @param out
+     *            The writer to write to
+     * @param separator
+     *            The string to write between UUIDs
+     * @param encoding
+     *            The encoding to write UUIDs in
+     * @throws IOException
+     *             If the writer fails
+     */
+    public synchronized void writeTo(final Writer out, final String separator,
+            final UUIDEncoding encoding) throws IOException {
+        final char[] chars = new char[encoding.getLength()];
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.write(separator);
+            }
+            encoding.format(bits[i * 2], bits[i * 2 + 1], chars, 0);
+            out.write(chars);
+        }
+    }
+
+    /**
+     * Gets a read-only view of the UUIDs currently in this list. UUIDs are
+     * only created as they are accessed, and as this list is append-only the
+     * view is unaffected by UUIDs added later
+     * 
+     * @return A view of this list's current contents
+     */
+    public List<UUID> view() {
+        final int viewSize = size();
+        return new AbstractList<UUID>() {
+            @Override
+            public UUID get(final int position) {
+                if (position >= viewSize) {
+                    throw new IndexOutOfBoundsException("Position: "
+                            + position + ", size: " + viewSize);
+                }
+                return PackedUUIDList.this.get(position);
+            }
+
+            @Override
+            public int size() {
+                return viewSize;
+            }
+        };
+    }
+
+    /**
+     * Finds the position of the given UUID in this list
+     * 
+     * @return The position of the first occurrence of the UUID, or -1
+     */
+    private int find(final long msb, final long lsb) {
+        final int mask = index.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        int entry;
+        while ((entry = index[slot]) != 0) {
+            final int position = entry - 1;
+            if (bits[position * 2] == msb && bits[position * 2 + 1] == lsb) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(final long msb, final long lsb, final int entry) {
+        final int mask = index.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = entry;
+    }
+
+    private void rehash() {
+        final int[] old = index;
+        index = new int[old.length * 2];
+        for (final int entry : old) {
+            if (entry != 0) {
+                final int position = entry - 1;
+                insert(bits[position * 2], bits[position * 2 + 1], entry);
+            }
+        }
+    }
+
+    private static int hash(final long msb, final long lsb) {
+        return (int) GeneralUtil.mix(msb ^ (lsb * 0x9e3779b97f4a7c15L));
+    }
+}
@@ -0,0 +1,64 @@
+package pw.ollie.commandcodes.util;
+
+/**
+ * The ways UUIDs can be written as text. Both are read back by
+ * GeneralUtil.parseUUIDList, which tells them apart by their length
+ */
+public enum UUIDEncoding {
+    /**
+     * The canonical hexadecimal form, as written by UUID.toString
+     */
+    HEX(GeneralUtil.UUID_LENGTH),
+    /**
+     * The 16 bytes of the UUID in unpadded, URL safe base64, which is under
+     * two thirds of the length
+     */
+    BASE64(GeneralUtil.UUID_BASE64_LENGTH);
+
+    /**
+     * The amount of characters in a UUID written in this encoding
+     */
+    private final int length;
+
+    private UUIDEncoding(final int length) {
+        this.length = length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the UUID with the given bits into the given array in this
+     * encoding
+     * 
+     * @param msb
+     *            The most significant bits of the UUID
+     * @param lsb
+     *            The least significant bits of the UUID
+     * @param dest
+     *            The array to write to, which must have room for getLength
+     *            characters from the offset
+     * @param offset
+     *            The position in the array to start writing at
+     */
+    public void format(final long msb, final long lsb, final char[] dest,
+            final int offset) {
+        if (this == BASE64) {
+            GeneralUtil.formatUUIDBase64(msb, lsb, dest, offset);
+        } else {
+            GeneralUtil.formatUUID(msb, lsb, dest, offset);
+        }
+    }
+
+    /**
+     * Gets the encoding with the given name, ignoring case
+     * 
+     * @param name
+     *            The name of the encoding
+     * @return The encoding with the given name, or HEX if there is none
+     */
+    public static UUIDEncoding fromName(final String name) {
+        return name.equalsIgnoreCase("base64") ? BASE64 : HEX;
+    }
+}